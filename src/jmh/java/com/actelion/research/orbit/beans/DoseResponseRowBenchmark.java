@@ -0,0 +1,78 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.beans;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.ParseException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DoseResponseRow.parseDoseResponseRow / toString.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DoseResponseRowBenchmark {
+
+    private static final int NUM_ROWS = 1000;
+
+    private String[] lines;
+    private DoseResponseRow[] rows;
+    private int idx = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        lines = new String[NUM_ROWS];
+        rows = new DoseResponseRow[NUM_ROWS];
+        for (int i = 0; i < NUM_ROWS; i++) {
+            rows[i] = new DoseResponseRow("plate" + (i / 384), "" + (char) ('A' + (i % 16)) + (i % 24 + 1), "sample", "ACT-" + (100000 + i), "T" + i, 100000 + i,
+                    "compound", i % 8, i % 3, Math.pow(10, -(i % 8)), 3d, "group" + (i % 4), "intensity", random.nextDouble() * 100d);
+            lines[i] = rows[i].toString();
+        }
+    }
+
+    @Benchmark
+    public DoseResponseRow parseDoseResponseRow() throws ParseException {
+        idx = (idx + 1) % NUM_ROWS;
+        return DoseResponseRow.parseDoseResponseRow(lines[idx]);
+    }
+
+    @Benchmark
+    public String toStringRow() {
+        idx = (idx + 1) % NUM_ROWS;
+        return rows[idx].toString();
+    }
+
+}
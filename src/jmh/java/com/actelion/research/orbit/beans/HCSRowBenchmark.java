@@ -0,0 +1,107 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.beans;
+
+import com.actelion.research.orbit.utils.parser.HCSStreamReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HCSRow.parseHCSRow / toString for rows with a varying number of values, and the streaming HCSStreamReader
+ * on the same data (per row).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HCSRowBenchmark {
+
+    private static final int NUM_ROWS = 1000;
+
+    @Param({"4", "32"})
+    public int numValues;
+
+    private String[] lines;
+    private HCSRow[] rows;
+    private String content;
+    private int idx = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        lines = new String[NUM_ROWS];
+        rows = new HCSRow[NUM_ROWS];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < NUM_ROWS; i++) {
+            double[] values = new double[numValues];
+            for (int v = 0; v < numValues; v++) {
+                values[v] = random.nextDouble() * 1000d;
+            }
+            rows[i] = new HCSRow("plate" + (i / 384), "" + (char) ('A' + (i % 16)) + (i % 24 + 1), i % 9, i % 3, 0d, "obj" + i, random.nextInt(2000), random.nextInt(2000), new Date(1500000000000L + i * 1000L), values);
+            lines[i] = rows[i].toString();
+            sb.append(lines[i]).append('\n');
+        }
+        content = sb.toString();
+    }
+
+    @Benchmark
+    public HCSRow parseHCSRow() throws ParseException {
+        idx = (idx + 1) % NUM_ROWS;
+        return HCSRow.parseHCSRow(lines[idx]);
+    }
+
+    @Benchmark
+    public String toStringRow() {
+        idx = (idx + 1) % NUM_ROWS;
+        return rows[idx].toString();
+    }
+
+    /**
+     * Parses all rows with HCSStreamReader, the time per row is the score divided by NUM_ROWS.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void streamReaderAllRows(Blackhole bh) throws Exception {
+        try (HCSStreamReader reader = new HCSStreamReader(new StringReader(content))) {
+            while (reader.nextRow()) {
+                bh.consume(reader.getValue(0));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChannelToHue.getHue for exact matches, the fixed substring checks and the scan over all mappings.<br>
+ * Resolved names are memoized, so after the first call these measure the memo cache lookup.
+ * Unknown channel names are not benchmarked because getHue logs a message for them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelToHueBenchmark {
+
+    private static final String[] EXACT = {"dapi", "fitc", "cy5", "hoechst"};
+    private static final String[] CONTAINS = {"Alexa Fluor 488 nm", "AF647-conjugate", "Ch1 DAPI 405", "Texas Red"};
+    private static final String[] MAPPING_SCAN = {"amca 350", "coumarin 343", "anti-cd3 percp", "channel2 raw"};
+
+    private int idx = 0;
+
+    @Benchmark
+    public float getHueExact() {
+        idx = (idx + 1) & 3;
+        return ChannelToHue.getHue(EXACT[idx]);
+    }
+
+    @Benchmark
+    public float getHueContains() {
+        idx = (idx + 1) & 3;
+        return ChannelToHue.getHue(CONTAINS[idx]);
+    }
+
+    @Benchmark
+    public float getHueMappingScan() {
+        idx = (idx + 1) & 3;
+        return ChannelToHue.getHue(MAPPING_SCAN[idx]);
+    }
+
+}
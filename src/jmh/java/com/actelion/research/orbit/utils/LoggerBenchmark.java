@@ -0,0 +1,111 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logger dispatch to a listener which discards the output, for both log formats in synchronous and asynchronous mode,
+ * and the cost of a disabled log call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggerBenchmark {
+
+    @Param({"0", "1"}) // Logger.LOG_FORMAT_FULL, Logger.LOG_FORMAT_SMALL
+    public int logFormat;
+
+    @Param({"false", "true"})
+    public boolean async;
+
+    private Logger logger;
+    private BlackholeListener listener;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        logger = Logger.getLogger(LoggerBenchmark.class);
+        logger.setLogLevel(Logger.LOG_LEVEL_INFO);
+        listener = new BlackholeListener(bh, logFormat, Logger.LOG_LEVEL_INFO);
+        Logger.AddLogListener(listener); // weakly referenced, the field keeps it alive
+        Logger.setAsync(async);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Logger.setAsync(false);
+        Logger.RemoveLogListener(listener);
+    }
+
+    @Benchmark
+    public void info() {
+        logger.info("processing tile 12/34 of image 4711");
+    }
+
+    @Benchmark
+    public void debugDisabled() {
+        logger.debug("processing tile 12/34 of image 4711");
+    }
+
+    static class BlackholeListener implements ILogListener {
+        private final Blackhole bh;
+        private final int logFormat;
+        private final int logLevel;
+
+        BlackholeListener(Blackhole bh, int logFormat, int logLevel) {
+            this.bh = bh;
+            this.logFormat = logFormat;
+            this.logLevel = logLevel;
+        }
+
+        @Override
+        public void outputLog(int level, String s) {
+            bh.consume(s);
+        }
+
+        @Override
+        public int getLogFormat() {
+            return logFormat;
+        }
+
+        @Override
+        public int getLogLevel() {
+            return logLevel;
+        }
+    }
+
+}
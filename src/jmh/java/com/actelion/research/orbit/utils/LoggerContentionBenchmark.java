@@ -0,0 +1,108 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Log throughput with 32 threads logging concurrently to 4 listeners.<br>
+ * lockedRegistry replicates the former listener registry (ArrayList of weak references guarded by a ReentrantReadWriteLock)
+ * as baseline, copyOnWriteRegistry uses the Logger itself. Caller location capture is disabled to measure the dispatch only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(32)
+public class LoggerContentionBenchmark {
+
+    private static final int NUM_LISTENERS = 4;
+    private static final String MESSAGE = "processing tile 12/34 of image 4711";
+
+    private Logger logger;
+    private final List<ILogListener> listeners = new ArrayList<ILogListener>();
+    private final List<WeakReference<ILogListener>> lockedListeners = new ArrayList<WeakReference<ILogListener>>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean captureCallerLocation;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        logger = Logger.getLogger(LoggerContentionBenchmark.class);
+        captureCallerLocation = Logger.isCaptureCallerLocation();
+        Logger.setCaptureCallerLocation(false);
+        for (int i = 0; i < NUM_LISTENERS; i++) {
+            ILogListener listener = new LoggerBenchmark.BlackholeListener(bh, Logger.LOG_FORMAT_SMALL, Logger.LOG_LEVEL_INFO);
+            listeners.add(listener); // strong references, the registries only hold weak references
+            Logger.AddLogListener(listener);
+            lockedListeners.add(new WeakReference<ILogListener>(listener));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (ILogListener listener : listeners) {
+            Logger.RemoveLogListener(listener);
+        }
+        Logger.setCaptureCallerLocation(captureCallerLocation);
+    }
+
+    @Benchmark
+    public void copyOnWriteRegistry() {
+        logger.info(MESSAGE);
+    }
+
+    @Benchmark
+    public void lockedRegistry() {
+        lock.readLock().lock();
+        try {
+            String s = logger.getDateFormat().format(new Date(System.currentTimeMillis())) + " INFO " + MESSAGE;
+            for (WeakReference<ILogListener> logListenerRef : lockedListeners) {
+                ILogListener logListener = logListenerRef.get();
+                if (logListener != null && logListener.getLogLevel() <= Logger.LOG_LEVEL_INFO) {
+                    logListener.outputLog(Logger.LOG_LEVEL_INFO, s);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+}
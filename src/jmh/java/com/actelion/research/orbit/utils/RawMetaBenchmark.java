@@ -0,0 +1,109 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils;
+
+import com.actelion.research.orbit.beans.RawMeta;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RawMetaFactory.createMetaAuto (type detection for int, double, date and string values)
+ * and RawMetaListBuilder.buildRawMetaHash for a typical meta list of a file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RawMetaBenchmark {
+
+    private static final String[] VALUES = {"42", "3.1415", "12.03.2017", "March 12, 2017", "Hamamatsu NanoZoomer", " 1024 ", "-7.5E-3", "true"};
+    private static final int NUM_METAS = 500;
+
+    private RawMetaFactoryFile factory;
+    private int idx = 0;
+
+    @Setup
+    public void setup() {
+        factory = new RawMetaFactoryFile(1, new Date(), "bench");
+    }
+
+    /**
+     * Meta list for buildRawMetaHash. It is a separate state, so the per-invocation copy does not run for createMetaAuto.
+     */
+    @State(Scope.Thread)
+    public static class MetaListState {
+        private List<RawMeta> template;
+        private List<RawMeta> metas;
+
+        @Setup
+        public void setup() {
+            RawMetaFactoryFile factory = new RawMetaFactoryFile(1, new Date(), "bench");
+            template = new ArrayList<RawMeta>(NUM_METAS);
+            for (int i = 0; i < NUM_METAS; i++) {
+                String group = i % 5 == 0 ? "" : "Group" + (i % 7) + ".";
+                template.add(factory.createMetaAuto(group + "Name" + i, VALUES[i % VALUES.length]));
+            }
+        }
+
+        /**
+         * buildRawMetaHash modifies the meta names, so every invocation gets fresh copies.
+         */
+        @Setup(Level.Invocation)
+        public void copyMetas() {
+            metas = new ArrayList<RawMeta>(template.size());
+            for (RawMeta rm : template) {
+                RawMeta copy = new RawMeta();
+                copy.setName(rm.getName());
+                copy.setValue(rm.getValue());
+                copy.setRawTypeId(rm.getRawTypeId());
+                metas.add(copy);
+            }
+        }
+    }
+
+    @Benchmark
+    public RawMeta createMetaAuto() {
+        idx = (idx + 1) % VALUES.length;
+        return factory.createMetaAuto("Name", VALUES[idx]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<ListWithName<RawMeta>> buildRawMetaHash(MetaListState state) {
+        return RawMetaListBuilder.buildRawMetaHash(state.metas);
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the scalar StdStats methods with the parallel* bulk variants over array sizes around
+ * StdStats.DEFAULT_PARALLEL_THRESHOLD to find the crossover point (see StdStats.setParallelThreshold()).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StdStatsBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    private double[] data;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        data = new double[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = random.nextDouble() * 65535d;
+        }
+    }
+
+    @Benchmark
+    public double sum() {
+        return StdStats.sum(data);
+    }
+
+    @Benchmark
+    public double parallelSum() {
+        return StdStats.parallelSum(data);
+    }
+
+    @Benchmark
+    public double var() {
+        return StdStats.var(data);
+    }
+
+    @Benchmark
+    public double parallelVar() {
+        return StdStats.parallelVar(data);
+    }
+
+    @Benchmark
+    public double min() {
+        return StdStats.min(data);
+    }
+
+    @Benchmark
+    public double parallelMin() {
+        return StdStats.parallelMin(data);
+    }
+
+    @Benchmark
+    public double max() {
+        return StdStats.max(data);
+    }
+
+    @Benchmark
+    public double parallelMax() {
+        return StdStats.parallelMax(data);
+    }
+
+}
@@ -0,0 +1,493 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.beans;
+
+import com.actelion.research.orbit.utils.parser.HCSStreamReader;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar variant of HCSContainer.<br>
+ * Each value column is stored as a primitive double array, well and container names are dictionary encoded,
+ * site/object coordinates are stored in int arrays and the timestamps in a long array.
+ * Rows with fewer values than the container has value columns are padded with NaN.
+ */
+public class HCSColumnarContainer implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private String containerName = "";
+    private Date referenceDate = new Date();
+    private List<String> header = new ArrayList<String>();
+    private String plateFormat = "";
+    private int iPlateBatch = 0;
+    private String sConcentration = "";
+    private String sPipelineName = "";
+
+    private int numRows = 0;
+    private int capacity;
+    private final Dictionary containerNames = new Dictionary();
+    private final Dictionary wellNames = new Dictionary();
+    private int[] containerNameIdx;
+    private int[] wellNameIdx;
+    private int[] siteX;
+    private int[] siteY;
+    private double[] siteZ;
+    private String[] objectId;
+    private int[] objectX;
+    private int[] objectY;
+    private long[] time;
+    private double[][] columns;
+
+    /**
+     * @param numValueColumns number of value columns (header size - HCSContainer.NumHeaderColumns)
+     */
+    public HCSColumnarContainer(int numValueColumns) {
+        this(numValueColumns, INITIAL_CAPACITY);
+    }
+
+    public HCSColumnarContainer(int numValueColumns, int initialCapacity) {
+        this.capacity = Math.max(1, initialCapacity);
+        containerNameIdx = new int[capacity];
+        wellNameIdx = new int[capacity];
+        siteX = new int[capacity];
+        siteY = new int[capacity];
+        siteZ = new double[capacity];
+        objectId = new String[capacity];
+        objectX = new int[capacity];
+        objectY = new int[capacity];
+        time = new long[capacity];
+        columns = new double[numValueColumns][capacity];
+    }
+
+    /**
+     * Converts a row based HCSContainer into a columnar container.
+     */
+    public static HCSColumnarContainer fromHCSContainer(HCSContainer container) {
+        List<HCSRow> rows = container.getData() != null ? container.getData() : new ArrayList<HCSRow>();
+        int numValueColumns = 0;
+        if (container.getHeader() != null && container.getHeader().size() > HCSContainer.NumHeaderColumns) {
+            numValueColumns = container.getHeader().size() - HCSContainer.NumHeaderColumns;
+        }
+        for (HCSRow row : rows) {
+            if (row.getValues() != null) numValueColumns = Math.max(numValueColumns, row.getValues().length);
+        }
+        HCSColumnarContainer columnar = new HCSColumnarContainer(numValueColumns, rows.size());
+        columnar.copyMetaData(container);
+        for (HCSRow row : rows) {
+            double[] values = row.getValues();
+            columnar.addRow(row.getContainerName(), row.getWellName(), row.getSiteX(), row.getSiteY(), row.getSiteZ(), row.getObjectId(),
+                    row.getObjectX(), row.getObjectY(), row.getDateTime() != null ? row.getDateTime().getTime() : 0L, values, values != null ? values.length : 0);
+        }
+        return columnar;
+    }
+
+    /**
+     * Reads all remaining rows of the reader directly into a columnar container (no HCSRow objects are created).
+     * The number of value columns is the maximum of the header columns and the values per row (input without header is supported).
+     */
+    public static HCSColumnarContainer fromStream(HCSStreamReader reader) throws IOException, ParseException {
+        List<String> header = reader.getHeader();
+        int numValueColumns = header != null ? Math.max(0, header.size() - HCSContainer.NumHeaderColumns) : 0;
+        HCSColumnarContainer columnar = new HCSColumnarContainer(numValueColumns);
+        if (header != null) columnar.setHeader(header);
+        else columnar.setHeader(new ArrayList<String>(HCSContainer.HCSHeaderBaseList));
+        while (reader.nextRow()) {
+            if (columnar.numRows == 0) {
+                columnar.setContainerName(reader.getContainerName());
+                columnar.setReferenceDate(new Date(reader.getTime()));
+            }
+            columnar.ensureValueColumns(reader.getNumValues());
+            columnar.addRow(reader.getContainerName(), reader.getWellName(), reader.getSiteX(), reader.getSiteY(), reader.getSiteZ(), reader.getObjectId(),
+                    reader.getObjectX(), reader.getObjectY(), reader.getTime(), reader.getValues(), reader.getNumValues());
+        }
+        return columnar;
+    }
+
+    /**
+     * Converts this container back to a row based HCSContainer.
+     */
+    public HCSContainer toHCSContainer() {
+        List<HCSRow> rows = new ArrayList<HCSRow>(numRows);
+        int numValueColumns = columns.length;
+        for (int r = 0; r < numRows; r++) {
+            double[] values = null;
+            if (numValueColumns > 0) {
+                values = new double[numValueColumns];
+                for (int c = 0; c < numValueColumns; c++) {
+                    values[c] = columns[c][r];
+                }
+            }
+            rows.add(new HCSRow(containerNames.get(containerNameIdx[r]), wellNames.get(wellNameIdx[r]), siteX[r], siteY[r], siteZ[r], objectId[r],
+                    objectX[r], objectY[r], new Date(time[r]), values));
+        }
+        return new HCSContainer(containerName, referenceDate, rows, new ArrayList<String>(header), plateFormat, iPlateBatch, sConcentration, sPipelineName);
+    }
+
+    private void copyMetaData(HCSContainer container) {
+        containerName = container.getContainerName();
+        referenceDate = container.getReferenceDate();
+        if (container.getHeader() != null) header = new ArrayList<String>(container.getHeader());
+        plateFormat = container.getPlateFormat();
+        iPlateBatch = container.getiPlateBatch();
+        sConcentration = container.getsConcentration();
+        sPipelineName = container.getsPipelineName();
+    }
+
+    /**
+     * Appends a row. Only the first numValues entries of values are used, missing values are set to NaN.
+     * Values beyond the number of value columns are ignored.
+     */
+    public void addRow(String containerName, String wellName, int siteX, int siteY, double siteZ, String objectId, int objectX, int objectY, long time,
+                       double[] values, int numValues) {
+        if (numRows == capacity) grow();
+        int r = numRows;
+        containerNameIdx[r] = containerNames.encode(containerName);
+        wellNameIdx[r] = wellNames.encode(wellName);
+        this.siteX[r] = siteX;
+        this.siteY[r] = siteY;
+        this.siteZ[r] = siteZ;
+        this.objectId[r] = objectId;
+        this.objectX[r] = objectX;
+        this.objectY[r] = objectY;
+        this.time[r] = time;
+        for (int c = 0; c < columns.length; c++) {
+            columns[c][r] = (values != null && c < numValues) ? values[c] : Double.NaN;
+        }
+        numRows++;
+    }
+
+    /**
+     * Adds NaN filled value columns until there are at least numValueColumns.
+     */
+    private void ensureValueColumns(int numValueColumns) {
+        if (numValueColumns > columns.length) {
+            int old = columns.length;
+            columns = Arrays.copyOf(columns, numValueColumns);
+            for (int c = old; c < numValueColumns; c++) {
+                columns[c] = new double[capacity];
+                Arrays.fill(columns[c], 0, numRows, Double.NaN);
+            }
+        }
+    }
+
+    private void grow() {
+        resize(capacity + (capacity >> 1) + 1);
+    }
+
+    private void resize(int newCapacity) {
+        containerNameIdx = Arrays.copyOf(containerNameIdx, newCapacity);
+        wellNameIdx = Arrays.copyOf(wellNameIdx, newCapacity);
+        siteX = Arrays.copyOf(siteX, newCapacity);
+        siteY = Arrays.copyOf(siteY, newCapacity);
+        siteZ = Arrays.copyOf(siteZ, newCapacity);
+        objectId = Arrays.copyOf(objectId, newCapacity);
+        objectX = Arrays.copyOf(objectX, newCapacity);
+        objectY = Arrays.copyOf(objectY, newCapacity);
+        time = Arrays.copyOf(time, newCapacity);
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = Arrays.copyOf(columns[c], newCapacity);
+        }
+        capacity = newCapacity;
+    }
+
+    /**
+     * Reduces the capacity of all columns to the number of rows.
+     */
+    public void trimToSize() {
+        if (capacity == numRows || numRows == 0) return;
+        resize(numRows);
+    }
+
+    // aggregations
+
+    /**
+     * Returns the mean of the value column per well (indexed like getWellNames()). NaN values are ignored,
+     * wells without values have a NaN mean.
+     */
+    public double[] getWellMeans(int column) {
+        final double[] col = columns[column];
+        final int numWells = wellNames.size();
+        final double[] sum = new double[numWells];
+        final int[] cnt = new int[numWells];
+        for (int r = 0; r < numRows; r++) {
+            double v = col[r];
+            if (v == v) { // !NaN
+                int w = wellNameIdx[r];
+                sum[w] += v;
+                cnt[w]++;
+            }
+        }
+        for (int w = 0; w < numWells; w++) {
+            sum[w] = cnt[w] > 0 ? sum[w] / cnt[w] : Double.NaN;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the mean of the value column per well name (in order of first occurrence).
+     */
+    public Map<String, Double> getWellMeanMap(int column) {
+        double[] means = getWellMeans(column);
+        Map<String, Double> map = new LinkedHashMap<String, Double>(means.length);
+        for (int w = 0; w < means.length; w++) {
+            map.put(wellNames.get(w), means[w]);
+        }
+        return map;
+    }
+
+    /**
+     * Returns the number of rows per well (indexed like getWellNames()).
+     */
+    public int[] getWellCounts() {
+        int[] cnt = new int[wellNames.size()];
+        for (int r = 0; r < numRows; r++) {
+            cnt[wellNameIdx[r]]++;
+        }
+        return cnt;
+    }
+
+    /**
+     * Returns a histogram of the value column with numBins equally sized bins between min and max.
+     * Values outside [min,max] and NaN values are ignored, max itself is counted in the last bin.
+     */
+    public long[] getHistogram(int column, int numBins, double min, double max) {
+        if (numBins <= 0) throw new IllegalArgumentException("numBins must be > 0");
+        if (!(max > min)) throw new IllegalArgumentException("max must be > min");
+        final double[] col = columns[column];
+        final long[] hist = new long[numBins];
+        final double scale = numBins / (max - min);
+        for (int r = 0; r < numRows; r++) {
+            double v = col[r];
+            if (v >= min && v <= max) {
+                int bin = (int) ((v - min) * scale);
+                if (bin >= numBins) bin = numBins - 1;
+                hist[bin]++;
+            }
+        }
+        return hist;
+    }
+
+    /**
+     * Returns the min and max of the value column ({NaN,NaN} if the column only contains NaN values).
+     */
+    public double[] getMinMax(int column) {
+        final double[] col = columns[column];
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int r = 0; r < numRows; r++) {
+            double v = col[r];
+            if (v < min) min = v;
+            if (v > max) max = v;
+        }
+        if (min > max) return new double[]{Double.NaN, Double.NaN};
+        return new double[]{min, max};
+    }
+
+    /**
+     * Returns the index of the value column with the given name or -1.
+     */
+    public int getColumnIndex(String valueName) {
+        int idx = header.indexOf(valueName);
+        return idx < HCSContainer.NumHeaderColumns ? -1 : idx - HCSContainer.NumHeaderColumns;
+    }
+
+    public List<String> getValueNames() {
+        if (header.size() <= HCSContainer.NumHeaderColumns) return new ArrayList<String>();
+        return header.subList(HCSContainer.NumHeaderColumns, header.size());
+    }
+
+    @Override
+    public String toString() {
+        return "HCSColumnarContainer [containerName=" + containerName + ", referenceDate=" + referenceDate + ", dataNumRows=" + numRows + ", valueColumns=" + columns.length
+                + ", wells=" + wellNames.size() + ", plateFormat=" + plateFormat + ", plateBatch=" + iPlateBatch + "]";
+    }
+
+    // column access (the arrays might be longer than getNumRows())
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getNumValueColumns() {
+        return columns.length;
+    }
+
+    public double[] getColumn(int column) {
+        return columns[column];
+    }
+
+    public List<String> getWellNames() {
+        return wellNames.values();
+    }
+
+    public List<String> getContainerNames() {
+        return containerNames.values();
+    }
+
+    public int[] getWellNameIdx() {
+        return wellNameIdx;
+    }
+
+    public int[] getContainerNameIdx() {
+        return containerNameIdx;
+    }
+
+    public String getWellName(int row) {
+        return wellNames.get(wellNameIdx[row]);
+    }
+
+    public String getContainerName(int row) {
+        return containerNames.get(containerNameIdx[row]);
+    }
+
+    public int[] getSiteX() {
+        return siteX;
+    }
+
+    public int[] getSiteY() {
+        return siteY;
+    }
+
+    public double[] getSiteZ() {
+        return siteZ;
+    }
+
+    public String[] getObjectId() {
+        return objectId;
+    }
+
+    public int[] getObjectX() {
+        return objectX;
+    }
+
+    public int[] getObjectY() {
+        return objectY;
+    }
+
+    public long[] getTime() {
+        return time;
+    }
+
+    // meta data
+
+    public String getContainerName() {
+        return containerName;
+    }
+
+    public void setContainerName(String containerName) {
+        this.containerName = containerName;
+    }
+
+    public Date getReferenceDate() {
+        return referenceDate;
+    }
+
+    public void setReferenceDate(Date referenceDate) {
+        this.referenceDate = referenceDate;
+    }
+
+    public List<String> getHeader() {
+        return header;
+    }
+
+    public void setHeader(List<String> header) {
+        this.header = header;
+    }
+
+    public String getPlateFormat() {
+        return plateFormat;
+    }
+
+    public void setPlateFormat(String plateFormat) {
+        this.plateFormat = plateFormat;
+    }
+
+    public int getiPlateBatch() {
+        return iPlateBatch;
+    }
+
+    public void setiPlateBatch(int iPlateBatch) {
+        this.iPlateBatch = iPlateBatch;
+    }
+
+    public String getsConcentration() {
+        return sConcentration;
+    }
+
+    public void setsConcentration(String sConcentration) {
+        this.sConcentration = sConcentration;
+    }
+
+    public String getsPipelineName() {
+        return sPipelineName;
+    }
+
+    public void setsPipelineName(String sPipelineName) {
+        this.sPipelineName = sPipelineName;
+    }
+
+
+    /**
+     * Simple string dictionary, codes are assigned in order of first occurrence.
+     */
+    private static class Dictionary implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final Map<String, Integer> codes = new HashMap<String, Integer>();
+        private final List<String> values = new ArrayList<String>();
+        private String lastValue = null;
+        private int lastCode = -1;
+
+        int encode(String value) {
+            if (lastValue != null && lastValue.equals(value)) return lastCode; // rows are usually sorted by container/well
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            lastValue = value;
+            lastCode = code;
+            return code;
+        }
+
+        String get(int code) {
+            return values.get(code);
+        }
+
+        int size() {
+            return values.size();
+        }
+
+        List<String> values() {
+            return values;
+        }
+    }
+
+}
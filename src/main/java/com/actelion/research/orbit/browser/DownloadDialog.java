@@ -29,16 +29,18 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.util.List;
 
+/**
+ * Progress view for a {@link DownloadEngine}, which downloads the files concurrently (resumable, md5 verified).
+ */
 public class DownloadDialog extends JDialog {
 
     private static final long serialVersionUID = 1L;
     private Logger logger = Logger.getLogger(DownloadDialog.class);
     protected static final int BUFFER_SIZE = 1024 * 64;
+    protected static final int PROGRESS_UPDATE_MILLIS = 250;
     final protected JLabel label = new JLabel();
     final protected JProgressBar progressBar = new JProgressBar();
     final protected JButton cancelBtn = new JButton("Cancel");
@@ -48,6 +50,7 @@ public class DownloadDialog extends JDialog {
     protected boolean cancel = false;
     protected int numFiles = 1;
     protected IRdfToInputStream rdfToInputStream;
+    protected volatile DownloadEngine downloadEngine = null;
 
     public DownloadDialog(String title, List<RawDataFile> rdfList, String dir, IRdfToInputStream rdfToInputStream) {
 
@@ -64,7 +67,7 @@ public class DownloadDialog extends JDialog {
 
         cancelBtn.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                cancel = true;
+                cancelDownload();
                 setVisible(false);
             }
         });
@@ -74,7 +77,7 @@ public class DownloadDialog extends JDialog {
         setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent e) {
-                cancel = true;
+                cancelDownload();
                 setVisible(false);
             }
         });
@@ -93,11 +96,37 @@ public class DownloadDialog extends JDialog {
     public void downloadRDFs() {
         setModal(true);
         SwingWorker<Void, Void> downloadWorker = new DownloadWorker(rdfList, dir);
-        SwingUtilities.invokeLater(downloadWorker);
-        //downloadWorker.execute();
+        downloadWorker.execute();
+    }
+
+    protected void cancelDownload() {
+        cancel = true;
+        DownloadEngine engine = downloadEngine;
+        if (engine != null) engine.cancel();
+    }
+
+    /**
+     * Updates label and progress bar from the engine (called on the event dispatch thread).
+     */
+    protected void updateProgress(DownloadEngine engine) {
+        final int val = (int) (engine.getProgress() * 100d);
+        progressBar.setValue(val);
+        progressBar.setString(val + "%");
+        String text = "Download: " + engine.getFilesDone() + " / " + engine.getFilesTotal() + " (" + formatRate(engine.getBytesPerSecond()) + ")";
+        if (engine.getFilesFailed() > 0) text += ", " + engine.getFilesFailed() + " failed";
+        label.setText(text);
+        repaint();
+    }
+
+    protected static String formatRate(double bytesPerSecond) {
+        if (bytesPerSecond >= 1024d * 1024d) return String.format("%.1f MB/s", bytesPerSecond / (1024d * 1024d));
+        return String.format("%.0f KB/s", bytesPerSecond / 1024d);
     }
 
 
+    /**
+     * Runs the download engine and updates the progress until all files are downloaded.
+     */
     protected class DownloadWorker extends SwingWorker<Void, Void> {
         List<RawDataFile> rdfList = null;
         String dir = "";
@@ -110,57 +139,36 @@ public class DownloadDialog extends JDialog {
         @Override
         protected Void doInBackground() throws Exception {
             if (rdfList == null || rdfList.size() == 0 || dir.equals("")) return null;
-            BufferedOutputStream os = null;
-            BufferedInputStream is = null;
-            byte[] buf = new byte[BUFFER_SIZE];
+            numFiles = rdfList.size();
+            final DownloadEngine engine = new DownloadEngine(rdfToInputStream, new File(dir));
+            downloadEngine = engine;
+            if (cancel) engine.cancel();
+            final Timer timer = new Timer(PROGRESS_UPDATE_MILLIS, new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    updateProgress(engine);
+                }
+            });
+            timer.start();
             try {
-                numFiles = rdfList.size();
-                int numDone = 0;
-                for (RawDataFile rdf : rdfList) {
-                    os = new BufferedOutputStream(new FileOutputStream(dir + rdf.getFileName()));
-                    is = new BufferedInputStream(rdfToInputStream.getInputStream(rdf));
-                    int bytesRead = 0;
-                    while ((bytesRead = is.read(buf)) > 0) {
-                        if (cancel) {
-                            try {
-                                os.flush();
-                                os.close();
-                                is.close();
-                                buf = null;
-                            } catch (Exception e) {
-                            }
-                            return null;
-                        }
-                        os.write(buf, 0, bytesRead);
-                    }
-                    os.flush();
-                    os.close();
-                    is.close();
-
-                    numDone++;
-                    //firePropertyChange("numDone", null, new Integer(numDone));
-                    final int val = (int) ((numDone / (double) numFiles) * 100d);
-                    progressBar.setValue(val);
-                    progressBar.setString(val + "%");
-                    label.setText("Download: " + numDone + " / " + numFiles);
-                    repaint();
-
+                DownloadEngine.DownloadResult result = engine.download(rdfList).get();
+                if (!result.getFailed().isEmpty()) {
+                    logger.error("download error: " + result.getFailed().size() + " of " + numFiles + " files failed");
                 }
-                cancelBtn.setText("Close");
-
             } catch (Exception e) {
                 logger.error("download error: " + e.getMessage());
             } finally {
-                try {
-                    buf = null;
-                    os.close();
-                    is.close();
-                } catch (Exception e) {
-                }
+                timer.stop();
             }
             return null;
         }
 
+        @Override
+        protected void done() {
+            DownloadEngine engine = downloadEngine;
+            if (engine != null) updateProgress(engine);
+            cancelBtn.setText("Close");
+        }
+
     }
 
 }
@@ -0,0 +1,465 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.browser;
+
+import com.actelion.research.orbit.beans.RawDataFile;
+import com.actelion.research.orbit.utils.IRdfToInputStream;
+import com.actelion.research.orbit.utils.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless download engine for RawDataFiles.<br>
+ * Several files are downloaded concurrently via {@link IRdfToInputStream} (files with the same name one after another, because they share the target file). Data is written with a FileChannel
+ * (FileChannel.transferFrom if the source is a FileInputStream) into a 'filename.part' file which is renamed when complete.
+ * Partial files of a cancelled or failed download are resumed on the next download, complete files are verified
+ * against RawDataFile.getMd5() (if available) and existing files with matching size and md5 are not downloaded again.
+ * The md5 is computed while the data is written (for resumed files the existing part is hashed first), so files are not read twice.
+ * <p>
+ * Progress can be polled (getBytesDone(), getBytesPerSecond(), ...) or observed with an {@link IDownloadListener}.
+ * An engine instance downloads one batch of files.
+ */
+public class DownloadEngine {
+
+    private static final Logger logger = Logger.getLogger(DownloadEngine.class);
+    public static final int DEFAULT_PARALLEL_DOWNLOADS = 4;
+    public static final String PART_SUFFIX = ".part";
+    protected static final int BUFFER_SIZE = 1024 * 1024;
+    private static final long TRANSFER_CHUNK = 16L * 1024 * 1024;
+
+    /**
+     * Callbacks are called from the download threads.
+     */
+    public interface IDownloadListener {
+        void fileCompleted(RawDataFile rdf, File file);
+
+        void fileFailed(RawDataFile rdf, Exception e);
+
+        void finished(DownloadResult result);
+    }
+
+    /**
+     * Downloaded files (in the order of the request) and failed files of a download.
+     */
+    public static class DownloadResult {
+        private final Map<RawDataFile, File> downloaded;
+        private final Map<RawDataFile, Exception> failed;
+        private final boolean cancelled;
+
+        DownloadResult(Map<RawDataFile, File> downloaded, Map<RawDataFile, Exception> failed, boolean cancelled) {
+            this.downloaded = downloaded;
+            this.failed = failed;
+            this.cancelled = cancelled;
+        }
+
+        public Map<RawDataFile, File> getDownloaded() {
+            return downloaded;
+        }
+
+        public Map<RawDataFile, Exception> getFailed() {
+            return failed;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isSuccessful() {
+            return !cancelled && failed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "DownloadResult [downloaded=" + downloaded.size() + ", failed=" + failed.size() + ", cancelled=" + cancelled + "]";
+        }
+    }
+
+    protected final IRdfToInputStream rdfToInputStream;
+    protected final File targetDir;
+    protected final int parallelDownloads;
+    private final List<IDownloadListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean verifyMd5 = true;
+    private volatile boolean cancelled = false;
+    private volatile boolean started = false;
+    private final AtomicLong bytesDone = new AtomicLong(0);
+    private final AtomicLong bytesTransferred = new AtomicLong(0);
+    private final AtomicLong bytesTotal = new AtomicLong(0);
+    private final AtomicInteger filesDone = new AtomicInteger(0);
+    private final AtomicInteger filesFailed = new AtomicInteger(0);
+    private volatile int filesTotal = 0;
+    private volatile long startTime = 0;
+    private volatile long endTime = 0;
+
+    public DownloadEngine(IRdfToInputStream rdfToInputStream, File targetDir) {
+        this(rdfToInputStream, targetDir, DEFAULT_PARALLEL_DOWNLOADS);
+    }
+
+    /**
+     * @param parallelDownloads number of files downloaded concurrently
+     */
+    public DownloadEngine(IRdfToInputStream rdfToInputStream, File targetDir, int parallelDownloads) {
+        if (rdfToInputStream == null) throw new IllegalArgumentException("rdfToInputStream must not be null");
+        this.rdfToInputStream = rdfToInputStream;
+        this.targetDir = targetDir;
+        this.parallelDownloads = Math.max(1, parallelDownloads);
+    }
+
+    public void addDownloadListener(IDownloadListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeDownloadListener(IDownloadListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts the download of all files. The future completes when all files are downloaded, failed or the download is cancelled.
+     */
+    public synchronized CompletableFuture<DownloadResult> download(final List<RawDataFile> rdfList) {
+        if (started) throw new IllegalStateException("a DownloadEngine can be used for one download only");
+        started = true;
+        if (!targetDir.isDirectory() && !targetDir.mkdirs()) {
+            CompletableFuture<DownloadResult> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("cannot create directory " + targetDir));
+            return failed;
+        }
+        filesTotal = rdfList.size();
+        for (RawDataFile rdf : rdfList) {
+            if (rdf.getFileSize() > 0) bytesTotal.addAndGet(rdf.getFileSize());
+        }
+        startTime = System.nanoTime();
+
+        final Map<RawDataFile, File> downloaded = Collections.synchronizedMap(new LinkedHashMap<RawDataFile, File>());
+        final Map<RawDataFile, Exception> failed = Collections.synchronizedMap(new LinkedHashMap<RawDataFile, Exception>());
+        final Map<String, List<RawDataFile>> groups = new LinkedHashMap<>();
+        for (RawDataFile rdf : rdfList) {
+            groups.computeIfAbsent(rdf.getFileName(), k -> new ArrayList<RawDataFile>()).add(rdf);
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelDownloads, Math.max(1, groups.size())), new DownloadThreadFactory());
+        List<CompletableFuture<Void>> futures = new ArrayList<>(groups.size());
+        for (final List<RawDataFile> group : groups.values()) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                // files with the same name share the target and part file, so they must not be downloaded concurrently
+                for (RawDataFile rdf : group) {
+                    if (cancelled) return;
+                    downloadAndNotify(rdf, downloaded, failed);
+                }
+            }, executor));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).handle((v, t) -> {
+            executor.shutdown();
+            endTime = System.nanoTime();
+            DownloadResult result = new DownloadResult(orderedCopy(rdfList, downloaded), orderedCopy(rdfList, failed), cancelled);
+            for (IDownloadListener listener : listeners) {
+                listener.finished(result);
+            }
+            return result;
+        });
+    }
+
+    private void downloadAndNotify(RawDataFile rdf, Map<RawDataFile, File> downloaded, Map<RawDataFile, Exception> failed) {
+        File file;
+        try {
+            file = downloadFile(rdf);
+        } catch (Exception e) {
+            logger.error("download error " + rdf.getFileName() + ": " + e.getMessage());
+            failed.put(rdf, e);
+            filesFailed.incrementAndGet();
+            for (IDownloadListener listener : listeners) {
+                try {
+                    listener.fileFailed(rdf, e);
+                } catch (RuntimeException le) {
+                    logger.error("error in download listener (fileFailed " + rdf.getFileName() + "): " + le.getMessage());
+                }
+            }
+            return;
+        }
+        if (file == null) return; // cancelled
+        downloaded.put(rdf, file);
+        filesDone.incrementAndGet();
+        for (IDownloadListener listener : listeners) {
+            try {
+                listener.fileCompleted(rdf, file);
+            } catch (RuntimeException le) {
+                logger.error("error in download listener (fileCompleted " + rdf.getFileName() + "): " + le.getMessage());
+            }
+        }
+    }
+
+    private static <V> Map<RawDataFile, V> orderedCopy(List<RawDataFile> rdfList, Map<RawDataFile, V> map) {
+        Map<RawDataFile, V> result = new LinkedHashMap<>();
+        synchronized (map) {
+            for (RawDataFile rdf : rdfList) {
+                if (map.containsKey(rdf)) result.put(rdf, map.get(rdf));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Downloads (or resumes) one file.
+     *
+     * @return the downloaded file or null if cancelled
+     */
+    protected File downloadFile(RawDataFile rdf) throws IOException {
+        File target = new File(targetDir, rdf.getFileName());
+        File part = new File(targetDir, rdf.getFileName() + PART_SUFFIX);
+        long expectedSize = rdf.getFileSize();
+
+        if (expectedSize > 0 && target.isFile() && target.length() == expectedSize && isMd5Valid(rdf, target)) {
+            bytesDone.addAndGet(expectedSize);
+            return target; // already downloaded
+        }
+
+        long offset = part.isFile() ? part.length() : 0;
+        if (expectedSize > 0 && offset > expectedSize) offset = 0;
+        bytesDone.addAndGet(offset); // on failure the part file is kept for resume and stays counted
+        MessageDigest digest = isMd5Required(rdf) ? createMd5Digest() : null;
+        if (digest != null && offset > 0) update(digest, part, offset);
+        if (!transfer(rdf, part, offset, digest)) return null;
+        if (digest != null && !isMd5Valid(rdf, digest)) {
+            if (offset == 0) throw md5Mismatch(rdf, part);
+            // the resumed part might have been corrupt: download the whole file again
+            logger.info("md5 mismatch for resumed download of " + rdf.getFileName() + ", downloading again");
+            bytesDone.addAndGet(-part.length());
+            digest.reset();
+            if (!transfer(rdf, part, 0, digest)) return null;
+            if (!isMd5Valid(rdf, digest)) throw md5Mismatch(rdf, part);
+        }
+        Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+
+    private IOException md5Mismatch(RawDataFile rdf, File part) {
+        bytesDone.addAndGet(-part.length());
+        part.delete(); // do not resume a corrupt file
+        return new IOException("md5 mismatch for " + rdf.getFileName());
+    }
+
+    /**
+     * Transfers the file from offset into part and feeds the transferred bytes to the digest (nullable).
+     * FileChannel.transferFrom is only used without digest, because it does not pass the data through the heap.
+     *
+     * @return false if cancelled (the part file is kept)
+     */
+    private boolean transfer(RawDataFile rdf, File part, long offset, MessageDigest digest) throws IOException {
+        try (InputStream is = rdfToInputStream.getInputStream(rdf, offset);
+             FileChannel out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            out.truncate(offset);
+            long pos = offset;
+            if (is instanceof FileInputStream && digest == null) {
+                FileChannel in = ((FileInputStream) is).getChannel();
+                while (true) {
+                    if (cancelled) return false;
+                    long n = out.transferFrom(in, pos, TRANSFER_CHUNK);
+                    if (n <= 0) break;
+                    pos += n;
+                    addBytes(n);
+                }
+            } else {
+                ReadableByteChannel in = is instanceof FileInputStream ? ((FileInputStream) is).getChannel() : Channels.newChannel(is);
+                ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                out.position(pos);
+                while (in.read(buf) >= 0) {
+                    if (cancelled) return false;
+                    buf.flip();
+                    int n = buf.remaining();
+                    if (digest != null) {
+                        buf.mark();
+                        digest.update(buf);
+                        buf.reset();
+                    }
+                    while (buf.hasRemaining()) {
+                        out.write(buf);
+                    }
+                    buf.clear();
+                    addBytes(n);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void addBytes(long n) {
+        bytesDone.addAndGet(n);
+        bytesTransferred.addAndGet(n);
+    }
+
+    private boolean isMd5Required(RawDataFile rdf) {
+        String md5 = rdf.getMd5();
+        return verifyMd5 && md5 != null && md5.trim().length() > 0;
+    }
+
+    private boolean isMd5Valid(RawDataFile rdf, File file) throws IOException {
+        if (!isMd5Required(rdf)) return true;
+        return rdf.getMd5().trim().equalsIgnoreCase(md5(file));
+    }
+
+    private static boolean isMd5Valid(RawDataFile rdf, MessageDigest digest) {
+        return rdf.getMd5().trim().equalsIgnoreCase(toHex(digest.digest()));
+    }
+
+    /**
+     * Returns the md5 of the file as lower case hex string.
+     */
+    public static String md5(File file) throws IOException {
+        MessageDigest digest = createMd5Digest();
+        update(digest, file, Long.MAX_VALUE);
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest createMd5Digest() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 not available", e);
+        }
+    }
+
+    /**
+     * Feeds the first length bytes of the file to the digest.
+     */
+    private static void update(MessageDigest digest, File file, long length) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            long remaining = length;
+            while (remaining > 0) {
+                if (remaining < buf.capacity()) buf.limit((int) remaining);
+                if (in.read(buf) < 0) break;
+                buf.flip();
+                remaining -= buf.remaining();
+                digest.update(buf);
+                buf.clear();
+            }
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Cancels the download. Running transfers stop after the current chunk, partial files are kept for resume.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void setVerifyMd5(boolean verifyMd5) {
+        this.verifyMd5 = verifyMd5;
+    }
+
+    public boolean isVerifyMd5() {
+        return verifyMd5;
+    }
+
+    /**
+     * Returns the number of bytes of the requested files available locally (including resumed and skipped files).
+     */
+    public long getBytesDone() {
+        return bytesDone.get();
+    }
+
+    /**
+     * Returns the sum of the file sizes (files with unknown size are not included).
+     */
+    public long getBytesTotal() {
+        return bytesTotal.get();
+    }
+
+    public int getFilesDone() {
+        return filesDone.get();
+    }
+
+    public int getFilesFailed() {
+        return filesFailed.get();
+    }
+
+    public int getFilesTotal() {
+        return filesTotal;
+    }
+
+    /**
+     * Returns the average transfer rate of all concurrent downloads since the start (bytes per second).
+     */
+    public double getBytesPerSecond() {
+        if (startTime == 0) return 0d;
+        long end = endTime != 0 ? endTime : System.nanoTime();
+        double seconds = (end - startTime) / 1e9d;
+        return seconds > 0 ? bytesTransferred.get() / seconds : 0d;
+    }
+
+    /**
+     * Returns the progress 0..1, based on bytes if all file sizes are known, otherwise on the number of files.
+     */
+    public double getProgress() {
+        if (filesTotal == 0) return 0d;
+        double fileProgress = (filesDone.get() + filesFailed.get()) / (double) filesTotal;
+        long total = bytesTotal.get();
+        if (total <= 0) return fileProgress;
+        return Math.min(1d, bytesDone.get() / (double) total);
+    }
+
+    private static class DownloadThreadFactory implements ThreadFactory {
+        private static final AtomicInteger poolNumber = new AtomicInteger(1);
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String prefix = "OrbitDownload-" + poolNumber.getAndIncrement() + "-";
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.dal;
+
+import com.actelion.research.orbit.beans.HCSMetaData;
+import com.actelion.research.orbit.beans.RawAnnotation;
+import com.actelion.research.orbit.beans.RawData;
+import com.actelion.research.orbit.beans.RawDataFile;
+import com.actelion.research.orbit.beans.RawMeta;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adapts a synchronous {@link IImageProvider} to {@link IAsyncImageProvider}.<br>
+ * Every call is executed on a bounded I/O executor, so at most nThreads calls hit the provider (e.g. the database) at the same time,
+ * further calls are queued. Calls which are cancelled before they start are not executed.
+ * <p>
+ * close() shuts down the executor if it was created by the adapter, the image provider itself is not closed.
+ */
+public class AsyncImageProviderAdapter implements IAsyncImageProvider {
+
+    private static final AtomicInteger poolNumber = new AtomicInteger(1);
+
+    protected final IImageProvider imageProvider;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+
+    /**
+     * Creates an adapter which uses imageProvider.getNumberOfAllowedParallelImageReads() threads.
+     */
+    public AsyncImageProviderAdapter(IImageProvider imageProvider) {
+        this(imageProvider, imageProvider.getNumberOfAllowedParallelImageReads());
+    }
+
+    /**
+     * @param nThreads maximum number of concurrent calls to the image provider
+     */
+    public AsyncImageProviderAdapter(IImageProvider imageProvider, int nThreads) {
+        this(imageProvider, createExecutor(Math.max(1, nThreads)), true);
+    }
+
+    /**
+     * Uses the given executor, which is not shut down by close().
+     */
+    public AsyncImageProviderAdapter(IImageProvider imageProvider, ExecutorService executor) {
+        this(imageProvider, executor, false);
+    }
+
+    private AsyncImageProviderAdapter(IImageProvider imageProvider, ExecutorService executor, boolean ownExecutor) {
+        if (imageProvider == null) throw new IllegalArgumentException("imageProvider must not be null");
+        this.imageProvider = imageProvider;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+    }
+
+    private static ExecutorService createExecutor(int nThreads) {
+        final String prefix = "OrbitAsyncIO-" + poolNumber.getAndIncrement() + "-";
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(nThreads, nThreads, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Executes an arbitrary (blocking) call on the I/O executor, e.g. a provider method without an async variant.
+     * Exceptions thrown by the call complete the future exceptionally.
+     */
+    public <T> CompletableFuture<T> submit(final Callable<T> call) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            executor.execute(() -> {
+                if (future.isDone()) return; // cancelled while queued
+                try {
+                    future.complete(call.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @Override
+    public IImageProvider getImageProvider() {
+        return imageProvider;
+    }
+
+    @Override
+    public CompletableFuture<RawData> LoadRawData(final int rawDataId) {
+        return submit(() -> imageProvider.LoadRawData(rawDataId));
+    }
+
+    @Override
+    public CompletableFuture<RawDataFile> LoadRawDataFile(final int rdfId) {
+        return submit(() -> imageProvider.LoadRawDataFile(rdfId));
+    }
+
+    @Override
+    public CompletableFuture<List<RawDataFile>> LoadRawDataFiles(final int rawDataId) {
+        return submit(() -> imageProvider.LoadRawDataFiles(rawDataId));
+    }
+
+    @Override
+    public CompletableFuture<List<RawDataFile>> LoadRawDataFiles(final int rawDataId, final List<String> fileTypes, final int limit) {
+        return submit(() -> imageProvider.LoadRawDataFiles(rawDataId, fileTypes, limit));
+    }
+
+    @Override
+    public CompletableFuture<List<RawDataFile>> LoadRawDataFilesSearch(final String search, final boolean andMode, final int limit, final List<String> fileTypes) {
+        return submit(() -> imageProvider.LoadRawDataFilesSearch(search, andMode, limit, fileTypes));
+    }
+
+    @Override
+    public CompletableFuture<BufferedImage> getThumbnail(final RawDataFile rdf) {
+        return submit(() -> imageProvider.getThumbnail(rdf));
+    }
+
+    @Override
+    public CompletableFuture<BufferedImage> getOverviewImage(final RawDataFile rdf) {
+        return submit(() -> imageProvider.getOverviewImage(rdf));
+    }
+
+    @Override
+    public CompletableFuture<BufferedImage> getLabelImage(final RawDataFile rdf) {
+        return submit(() -> imageProvider.getLabelImage(rdf));
+    }
+
+    @Override
+    public CompletableFuture<List<RawMeta>> LoadRawMetasByRawDataFile(final int rdfId) {
+        return submit(() -> imageProvider.LoadRawMetasByRawDataFile(rdfId));
+    }
+
+    @Override
+    public CompletableFuture<List<RawMeta>> LoadRawMetasByRawData(final int rawDataId) {
+        return submit(() -> imageProvider.LoadRawMetasByRawData(rawDataId));
+    }
+
+    @Override
+    public CompletableFuture<List<RawAnnotation>> LoadRawAnnotationsByRawDataFile(final int rdfId) {
+        return submit(() -> imageProvider.LoadRawAnnotationsByRawDataFile(rdfId));
+    }
+
+    @Override
+    public CompletableFuture<List<RawAnnotation>> LoadRawAnnotationsByRawDataFile(final int rdfId, final int rawAnnotationType) {
+        return submit(() -> imageProvider.LoadRawAnnotationsByRawDataFile(rdfId, rawAnnotationType));
+    }
+
+    @Override
+    public CompletableFuture<HCSMetaData> LoadHCSMetaData(final int rdfId) {
+        return submit(() -> imageProvider.LoadHCSMetaData(rdfId));
+    }
+
+    @Override
+    public CompletableFuture<IOrbitImage> createOrbitImage(final RawDataFile rdf, final int level) {
+        return submit(() -> imageProvider.createOrbitImage(rdf, level));
+    }
+
+    @Override
+    public void close() {
+        if (ownExecutor) executor.shutdown();
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.dal;
+
+import com.actelion.research.orbit.utils.ParallelTasks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Fallback for the bulk methods of {@link IImageProvider}: calls the single-item method for every key in parallel (on the shared ParallelTasks pool).
+ */
+final class BulkLoader {
+
+    interface Loader<K, V> {
+        V load(K key) throws Exception;
+    }
+
+    private BulkLoader() {
+    }
+
+    /**
+     * Loads all (distinct) keys with up to parallelism concurrent calls. The result map is in key order, null values are omitted.
+     * The first exception thrown by the loader is rethrown.
+     */
+    static <K, V> Map<K, V> loadAll(Collection<K> keys, int parallelism, final Loader<K, V> loader) throws Exception {
+        Collection<K> distinct = new LinkedHashSet<K>(keys);
+        Map<K, V> result = new LinkedHashMap<K, V>(distinct.size());
+        if (distinct.isEmpty()) return result;
+        List<Callable<V>> loads = new ArrayList<Callable<V>>(distinct.size());
+        for (final K key : distinct) {
+            loads.add(() -> loader.load(key));
+        }
+        List<V> values = ParallelTasks.invokeAll(loads, parallelism);
+        int i = 0;
+        for (K key : distinct) {
+            V value = values.get(i++);
+            if (value != null) result.put(key, value);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,583 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.dal;
+
+import com.actelion.research.orbit.beans.HCSMetaData;
+import com.actelion.research.orbit.beans.OrbitUser;
+import com.actelion.research.orbit.beans.RawAnnotation;
+import com.actelion.research.orbit.beans.RawData;
+import com.actelion.research.orbit.beans.RawDataFile;
+import com.actelion.research.orbit.beans.RawMeta;
+import com.actelion.research.orbit.gui.AbstractOrbitTree;
+import com.actelion.research.orbit.gui.IFileListCellRenderer;
+import com.actelion.research.orbit.lims.LIMSBioSample;
+import com.actelion.research.orbit.utils.ExpiringCache;
+import com.actelion.research.orbit.utils.IRdfToInputStream;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-through cache for the metadata queries of an image provider.<br>
+ * LoadRawData, LoadRawDataFile, LoadRawMetasByRawDataFile(s), LoadRawMetasByRawData and LoadHCSMetaData are cached
+ * (bounded by maxEntries per query type and a time-to-live), all other methods are delegated.
+ * Entries are invalidated by UpdateRawData, UpdateRawDataFile and Insert/Update/DeleteRawMeta calls made through this provider;
+ * changes made by other clients become visible after the TTL or {@link #clearCache()}.
+ * <p>
+ * Cached RawData and RawDataFile instances are shared between callers, cached meta lists are copied on each call.
+ */
+public class CachingImageProvider implements IImageProvider {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000L;
+
+    protected final IImageProvider imageProvider;
+    private final ExpiringCache<Integer, RawData> rawDataCache;
+    private final ExpiringCache<Integer, RawDataFile> rawDataFileCache;
+    private final ExpiringCache<Integer, List<RawMeta>> rawMetasByRdfCache;
+    private final ExpiringCache<Integer, List<RawMeta>> rawMetasByRawDataCache;
+    private final ExpiringCache<Integer, HCSMetaData> hcsMetaDataCache;
+
+    public CachingImageProvider(IImageProvider imageProvider) {
+        this(imageProvider, DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param maxEntries maximum number of cached entries per query type
+     * @param ttlMillis  time-to-live of a cached entry in milliseconds, &lt;=0 for no expiry
+     */
+    public CachingImageProvider(IImageProvider imageProvider, int maxEntries, long ttlMillis) {
+        if (imageProvider == null) throw new IllegalArgumentException("imageProvider must not be null");
+        this.imageProvider = imageProvider;
+        this.rawDataCache = new ExpiringCache<>(maxEntries, ttlMillis);
+        this.rawDataFileCache = new ExpiringCache<>(maxEntries, ttlMillis);
+        this.rawMetasByRdfCache = new ExpiringCache<>(maxEntries, ttlMillis);
+        this.rawMetasByRawDataCache = new ExpiringCache<>(maxEntries, ttlMillis);
+        this.hcsMetaDataCache = new ExpiringCache<>(maxEntries, ttlMillis);
+    }
+
+    private static <V> V load(ExpiringCache<Integer, V> cache, int key, BulkLoader.Loader<Integer, V> loader) throws Exception {
+        V value = cache.get(key);
+        if (value == null) {
+            long stamp = cache.getStamp();
+            value = loader.load(key);
+            cache.put(key, value, stamp);
+        }
+        return value;
+    }
+
+    private static List<RawMeta> copy(List<RawMeta> list) {
+        return list != null ? new ArrayList<>(list) : null;
+    }
+
+    private void invalidateRawMeta(RawMeta rm) {
+        if (rm == null) return;
+        rawMetasByRdfCache.remove(rm.getRawDataFileId());
+        rawMetasByRawDataCache.remove(rm.getRawDataId());
+        hcsMetaDataCache.remove(rm.getRawDataFileId());
+    }
+
+    private static boolean containsRawMeta(List<RawMeta> metas, int rawMetaId) {
+        for (RawMeta rm : metas) {
+            if (rm.getRawMetaId() == rawMetaId) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes all cached entries.
+     */
+    public void clearCache() {
+        rawDataCache.clear();
+        rawDataFileCache.clear();
+        rawMetasByRdfCache.clear();
+        rawMetasByRawDataCache.clear();
+        hcsMetaDataCache.clear();
+    }
+
+    public void resetStatistics() {
+        for (ExpiringCache<?, ?> cache : getCaches()) {
+            cache.resetStatistics();
+        }
+    }
+
+    private List<ExpiringCache<Integer, ?>> getCaches() {
+        List<ExpiringCache<Integer, ?>> caches = new ArrayList<>(5);
+        caches.add(rawDataCache);
+        caches.add(rawDataFileCache);
+        caches.add(rawMetasByRdfCache);
+        caches.add(rawMetasByRawDataCache);
+        caches.add(hcsMetaDataCache);
+        return caches;
+    }
+
+    public long getHitCount() {
+        long hits = 0;
+        for (ExpiringCache<?, ?> cache : getCaches()) {
+            hits += cache.getHitCount();
+        }
+        return hits;
+    }
+
+    public long getMissCount() {
+        long misses = 0;
+        for (ExpiringCache<?, ?> cache : getCaches()) {
+            misses += cache.getMissCount();
+        }
+        return misses;
+    }
+
+    public long getEvictionCount() {
+        long evictions = 0;
+        for (ExpiringCache<?, ?> cache : getCaches()) {
+            evictions += cache.getEvictionCount();
+        }
+        return evictions;
+    }
+
+    /**
+     * Returns hits / (hits + misses) over all cached queries, NaN if nothing has been requested yet.
+     */
+    public double getHitRate() {
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        if (total == 0) return Double.NaN;
+        return hits / (double) total;
+    }
+
+    /**
+     * Returns statistics per query type, e.g. for logging.
+     */
+    public Map<String, ExpiringCache<Integer, ?>> getCacheStatistics() {
+        Map<String, ExpiringCache<Integer, ?>> stats = new LinkedHashMap<>();
+        stats.put("RawData", rawDataCache);
+        stats.put("RawDataFile", rawDataFileCache);
+        stats.put("RawMetasByRawDataFile", rawMetasByRdfCache);
+        stats.put("RawMetasByRawData", rawMetasByRawDataCache);
+        stats.put("HCSMetaData", hcsMetaDataCache);
+        return stats;
+    }
+
+    public IImageProvider getImageProvider() {
+        return imageProvider;
+    }
+
+    @Override
+    public String toString() {
+        return "CachingImageProvider [" + imageProvider + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    // RawData
+
+    @Override
+    public List<RawData> LoadRawDataByBioLabJournal(String elb) throws Exception {
+        return imageProvider.LoadRawDataByBioLabJournal(elb);
+    }
+
+    @Override
+    public RawData LoadRawData(int rawDataId) throws Exception {
+        return load(rawDataCache, rawDataId, imageProvider::LoadRawData);
+    }
+
+    @Override
+    public boolean UpdateRawData(RawData rd) throws Exception {
+        try {
+            return imageProvider.UpdateRawData(rd);
+        } finally {
+            rawDataCache.remove(rd.getRawDataId());
+            rawMetasByRawDataCache.remove(rd.getRawDataId());
+        }
+    }
+
+    // RawDataFile
+
+    @Override
+    public RawDataFile LoadRawDataFile(int rdfId) throws Exception {
+        return load(rawDataFileCache, rdfId, imageProvider::LoadRawDataFile);
+    }
+
+    @Override
+    public List<RawDataFile> LoadRawDataFiles(int rawDataId) throws Exception {
+        return imageProvider.LoadRawDataFiles(rawDataId);
+    }
+
+    @Override
+    public List<RawDataFile> LoadRawDataFiles(int rawDataId, int limit) throws Exception {
+        return imageProvider.LoadRawDataFiles(rawDataId, limit);
+    }
+
+    @Override
+    public List<RawDataFile> LoadRawDataFiles(int rawDataId, List<String> fileTypes, int limit) throws Exception {
+        return imageProvider.LoadRawDataFiles(rawDataId, fileTypes, limit);
+    }
+
+    @Override
+    public List<RawDataFile> LoadRawDataFilesSearch(String elb, boolean andMode) throws Exception {
+        return imageProvider.LoadRawDataFilesSearch(elb, andMode);
+    }
+
+    @Override
+    public List<RawDataFile> LoadRawDataFilesSearch(String search, boolean andMode, int limit, List<String> fileTypes) throws Exception {
+        return imageProvider.LoadRawDataFilesSearch(search, andMode, limit, fileTypes);
+    }
+
+    @Override
+    public List<RawDataFile> LoadRawDataFilesByFilenameStart(String search, boolean andMode, int searchLimit, List<String> fileTypes, String orderHint) throws Exception {
+        return imageProvider.LoadRawDataFilesByFilenameStart(search, andMode, searchLimit, fileTypes, orderHint);
+    }
+
+    @Override
+    public List<RawDataFile> LoadRawDataFilesSearchFast(String search, int limit, List<String> fileTypes) throws Exception {
+        return imageProvider.LoadRawDataFilesSearchFast(search, limit, fileTypes);
+    }
+
+    @Override
+    public List<RawDataFile> LoadRawDataFilesByPlateName(String plateName, int plateBatch) throws Exception {
+        return imageProvider.LoadRawDataFilesByPlateName(plateName, plateBatch);
+    }
+
+    @Override
+    public List<RawDataFile> browseImages(Object parent) throws Exception {
+        return imageProvider.browseImages(parent);
+    }
+
+    @Override
+    public boolean useCustomBrowseImagesDialog() {
+        return imageProvider.useCustomBrowseImagesDialog();
+    }
+
+    @Override
+    public boolean UpdateRawDataFile(RawDataFile rdf) throws Exception {
+        try {
+            return imageProvider.UpdateRawDataFile(rdf);
+        } finally {
+            rawDataFileCache.remove(rdf.getRawDataFileId());
+            hcsMetaDataCache.remove(rdf.getRawDataFileId());
+        }
+    }
+
+    @Override
+    public URL getRawDataFileUrl(RawDataFile rdf) {
+        return imageProvider.getRawDataFileUrl(rdf);
+    }
+
+    @Override
+    public URL getRawDataFileUrl(RawDataFile rdf, int level) {
+        return imageProvider.getRawDataFileUrl(rdf, level);
+    }
+
+    @Override
+    public URL getRawDataFileThumbnailUrl(RawDataFile rdf) {
+        return imageProvider.getRawDataFileThumbnailUrl(rdf);
+    }
+
+    @Override
+    public BufferedImage getThumbnail(RawDataFile rdf) throws Exception {
+        return imageProvider.getThumbnail(rdf);
+    }
+
+    @Override
+    public Map<Integer, BufferedImage> getThumbnails(Collection<RawDataFile> rdfs) throws Exception {
+        return imageProvider.getThumbnails(rdfs);
+    }
+
+    @Override
+    public BufferedImage getOverviewImage(RawDataFile rdf) throws Exception {
+        return imageProvider.getOverviewImage(rdf);
+    }
+
+    @Override
+    public BufferedImage getLabelImage(RawDataFile rdf) throws Exception {
+        return imageProvider.getLabelImage(rdf);
+    }
+
+    @Override
+    public IRdfToInputStream getRdfToInputStream() {
+        return imageProvider.getRdfToInputStream();
+    }
+
+    // RawMeta
+
+    @Override
+    public List<RawMeta> LoadRawMetasByRawDataFile(int rdfId) throws Exception {
+        return copy(load(rawMetasByRdfCache, rdfId, imageProvider::LoadRawMetasByRawDataFile));
+    }
+
+    /**
+     * Cached metas are served from the cache, the others are loaded with one LoadRawMetasByRawDataFiles call of the underlying provider.
+     */
+    @Override
+    public Map<Integer, List<RawMeta>> LoadRawMetasByRawDataFiles(Collection<Integer> rdfIds) throws Exception {
+        Set<Integer> distinct = new LinkedHashSet<>(rdfIds);
+        Map<Integer, List<RawMeta>> cached = new LinkedHashMap<>(distinct.size());
+        List<Integer> missing = new ArrayList<>();
+        for (Integer rdfId : distinct) {
+            List<RawMeta> metas = rawMetasByRdfCache.get(rdfId);
+            if (metas != null) cached.put(rdfId, metas);
+            else missing.add(rdfId);
+        }
+        Map<Integer, List<RawMeta>> loaded = null;
+        if (!missing.isEmpty()) {
+            long stamp = rawMetasByRdfCache.getStamp();
+            loaded = imageProvider.LoadRawMetasByRawDataFiles(missing);
+            for (Map.Entry<Integer, List<RawMeta>> e : loaded.entrySet()) {
+                rawMetasByRdfCache.put(e.getKey(), e.getValue(), stamp);
+            }
+        }
+        Map<Integer, List<RawMeta>> result = new LinkedHashMap<>(distinct.size());
+        for (Integer rdfId : distinct) {
+            List<RawMeta> metas = cached.containsKey(rdfId) ? cached.get(rdfId) : loaded.get(rdfId);
+            if (metas != null) result.put(rdfId, copy(metas));
+        }
+        return result;
+    }
+
+    @Override
+    public List<RawMeta> LoadRawMetasByRawData(int rawDataId) throws Exception {
+        return copy(load(rawMetasByRawDataCache, rawDataId, imageProvider::LoadRawMetasByRawData));
+    }
+
+    @Override
+    public List<RawMeta> LoadRawMetasByRawDataFileAndName(int rdfId, String name) throws Exception {
+        return imageProvider.LoadRawMetasByRawDataFileAndName(rdfId, name);
+    }
+
+    @Override
+    public List<RawMeta> LoadRawMetasByRawDataAndName(int rawDataId, String name) throws Exception {
+        return imageProvider.LoadRawMetasByRawDataAndName(rawDataId, name);
+    }
+
+    @Override
+    public int InsertRawMeta(RawMeta rm) throws Exception {
+        try {
+            return imageProvider.InsertRawMeta(rm);
+        } finally {
+            invalidateRawMeta(rm);
+        }
+    }
+
+    @Override
+    public boolean UpdateRawMeta(RawMeta rm) throws Exception {
+        try {
+            return imageProvider.UpdateRawMeta(rm);
+        } finally {
+            invalidateRawMeta(rm);
+        }
+    }
+
+    @Override
+    public boolean DeleteRawMeta(final int rawMetaId) throws Exception {
+        try {
+            return imageProvider.DeleteRawMeta(rawMetaId);
+        } finally {
+            final Set<Integer> rdfIds = new HashSet<>();
+            rawMetasByRdfCache.removeIf((rdfId, metas) -> {
+                if (!containsRawMeta(metas, rawMetaId)) return false;
+                rdfIds.add(rdfId);
+                return true;
+            });
+            rawMetasByRawDataCache.removeIf((rawDataId, metas) -> containsRawMeta(metas, rawMetaId));
+            hcsMetaDataCache.removeIf((rdfId, hcs) -> rdfIds.contains(rdfId));
+        }
+    }
+
+    // RawAnnotation (not cached)
+
+    @Override
+    public RawAnnotation LoadRawAnnotation(int rawAnnotationId) throws Exception {
+        return imageProvider.LoadRawAnnotation(rawAnnotationId);
+    }
+
+    @Override
+    public List<RawAnnotation> LoadRawAnnotationsByRawDataFile(int rdfID) throws Exception {
+        return imageProvider.LoadRawAnnotationsByRawDataFile(rdfID);
+    }
+
+    @Override
+    public Map<Integer, List<RawAnnotation>> LoadRawAnnotationsByRawDataFiles(Collection<Integer> rdfIds) throws Exception {
+        return imageProvider.LoadRawAnnotationsByRawDataFiles(rdfIds);
+    }
+
+    @Override
+    public List<RawAnnotation> LoadRawAnnotationsByRawDataFile(int rdfID, int rawAnnotationType) throws Exception {
+        return imageProvider.LoadRawAnnotationsByRawDataFile(rdfID, rawAnnotationType);
+    }
+
+    @Override
+    public List<RawAnnotation> LoadRawAnnotationsByType(int annotationType) throws Exception {
+        return imageProvider.LoadRawAnnotationsByType(annotationType);
+    }
+
+    @Override
+    public List<RawAnnotation> LoadRawAnnotationsByTypeAndUser(int annotationType, String userId) throws Exception {
+        return imageProvider.LoadRawAnnotationsByTypeAndUser(annotationType, userId);
+    }
+
+    @Override
+    public List<RawAnnotation> LoadRawAnnotationsMetaByType(int annotationType) throws Exception {
+        return imageProvider.LoadRawAnnotationsMetaByType(annotationType);
+    }
+
+    @Override
+    public List<RawAnnotation> LoadRawAnnotationsMetaByTypeAndUserId(int annotationType, String userId) throws Exception {
+        return imageProvider.LoadRawAnnotationsMetaByTypeAndUserId(annotationType, userId);
+    }
+
+    @Override
+    public int InsertRawAnnotation(RawAnnotation rawAnnotation) throws Exception {
+        return imageProvider.InsertRawAnnotation(rawAnnotation);
+    }
+
+    @Override
+    public boolean UpdateRawAnnotation(RawAnnotation rawAnnotation) throws Exception {
+        return imageProvider.UpdateRawAnnotation(rawAnnotation);
+    }
+
+    @Override
+    public boolean DeleteRawAnnotation(int rawAnnotationId) throws Exception {
+        return imageProvider.DeleteRawAnnotation(rawAnnotationId);
+    }
+
+    @Override
+    public boolean DeleteRawAnnotationAllWithType(int rdfId, int annotationType) throws Exception {
+        return imageProvider.DeleteRawAnnotationAllWithType(rdfId, annotationType);
+    }
+
+    @Override
+    public String getReplacementMetadata(Object result) {
+        return imageProvider.getReplacementMetadata(result);
+    }
+
+    @Override
+    public HCSMetaData LoadHCSMetaData(int rdfId) throws Exception {
+        return load(hcsMetaDataCache, rdfId, imageProvider::LoadHCSMetaData);
+    }
+
+    // Image
+
+    @Override
+    public IOrbitImage createOrbitImage(RawDataFile rdf, int level) throws Exception {
+        return imageProvider.createOrbitImage(rdf, level);
+    }
+
+    // misc
+
+    @Override
+    public OrbitUser getOrbitUser(String username) {
+        return imageProvider.getOrbitUser(username);
+    }
+
+    @Override
+    public LIMSBioSample getLIMSBiosample(RawDataFile rdf) throws Exception {
+        return imageProvider.getLIMSBiosample(rdf);
+    }
+
+    @Override
+    public List<LIMSBioSample> LoadByContainerId(String barcode) throws Exception {
+        return imageProvider.LoadByContainerId(barcode);
+    }
+
+    @Override
+    public void openBrowser(String username, String password) {
+        imageProvider.openBrowser(username, password);
+    }
+
+    @Override
+    public AbstractOrbitTree createOrbitTree() {
+        return imageProvider.createOrbitTree();
+    }
+
+    @Override
+    public boolean authenticateUser(String username, String password) {
+        return imageProvider.authenticateUser(username, password);
+    }
+
+    @Override
+    public boolean authenticateUserScaleout() {
+        return imageProvider.authenticateUserScaleout();
+    }
+
+    @Override
+    public void setPooledConnectionEnabled(boolean enabled) {
+        imageProvider.setPooledConnectionEnabled(enabled);
+    }
+
+    @Override
+    public void setDBConnectionName(String name) {
+        imageProvider.setDBConnectionName(name);
+    }
+
+    @Override
+    public int getNumberOfAllowedParallelImageReads() {
+        return imageProvider.getNumberOfAllowedParallelImageReads();
+    }
+
+    @Override
+    public ConcurrentHashMap<String, Object> getHints() {
+        return imageProvider.getHints();
+    }
+
+    @Override
+    public IFileListCellRenderer getFileListCellRenderer() {
+        return imageProvider.getFileListCellRenderer();
+    }
+
+    @Override
+    public void logUsage(String username, String method) {
+        imageProvider.logUsage(username, method);
+    }
+
+    @Override
+    public boolean enforceLoginDialogAtStartup() {
+        return imageProvider.enforceLoginDialogAtStartup();
+    }
+
+    @Override
+    public List<String> getAdminUsers() {
+        return imageProvider.getAdminUsers();
+    }
+
+    @Override
+    public IImageProvider getLocalImageProvider() {
+        return imageProvider.getLocalImageProvider();
+    }
+
+    @Override
+    public void setLocalImageProvider(IImageProvider localImageProvider) {
+        imageProvider.setLocalImageProvider(localImageProvider);
+    }
+
+    @Override
+    public void close() throws IOException {
+        clearCache();
+        imageProvider.close();
+    }
+
+}
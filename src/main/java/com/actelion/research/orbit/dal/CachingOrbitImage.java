@@ -0,0 +1,374 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.dal;
+
+import com.actelion.research.orbit.beans.MinMaxPerChan;
+import com.actelion.research.orbit.exceptions.OrbitImageServletException;
+import com.actelion.research.orbit.utils.IntensityHistogram;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decorator for IOrbitImage which keeps decoded tiles in a LRU cache bounded by the byte weight of the rasters
+ * (width*height*bands*bytesPerSample).<br>
+ * The cache key consists of the source filename, the tile coordinates and the analysis flag.
+ * Cached rasters are shared between callers and must be treated as read-only.
+ */
+public class CachingOrbitImage implements IOrbitImage {
+
+    public static final long DEFAULT_MAX_WEIGHT = 256 * 1024 * 1024L;
+
+    protected final IOrbitImage orbitImage;
+    protected final long maxWeight;
+    private final LinkedHashMap<TileKey, Raster> cache = new LinkedHashMap<TileKey, Raster>(64, 0.75f, true);
+    private long weight = 0;
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicLong evictionCount = new AtomicLong(0);
+
+    public CachingOrbitImage(IOrbitImage orbitImage) {
+        this(orbitImage, DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * @param orbitImage the image to decorate
+     * @param maxWeight  maximum number of bytes the cached rasters may occupy
+     */
+    public CachingOrbitImage(IOrbitImage orbitImage, long maxWeight) {
+        if (orbitImage == null) throw new IllegalArgumentException("orbitImage must not be null");
+        if (maxWeight <= 0) throw new IllegalArgumentException("maxWeight must be > 0");
+        this.orbitImage = orbitImage;
+        this.maxWeight = maxWeight;
+    }
+
+    @Override
+    public Raster getTileData(int tileX, int tileY, boolean analysis) {
+        TileKey key = new TileKey(orbitImage.getFilename(), tileX, tileY, analysis);
+        synchronized (cache) {
+            Raster raster = cache.get(key);
+            if (raster != null) {
+                hitCount.incrementAndGet();
+                return raster;
+            }
+        }
+        missCount.incrementAndGet();
+        // load outside the lock, concurrent misses for the same tile might load it twice
+        Raster raster = orbitImage.getTileData(tileX, tileY, analysis);
+        if (raster != null) {
+            put(key, raster);
+        }
+        return raster;
+    }
+
+    /**
+     * Serves cached tiles directly and reads all missing tiles with one batch call of the decorated image.
+     */
+    @Override
+    public Map<Point, Raster> getTileData(Collection<Point> tiles, boolean analysis) {
+        final String filename = orbitImage.getFilename();
+        Map<Point, Raster> cached = new LinkedHashMap<Point, Raster>(tiles.size());
+        List<Point> missing = new ArrayList<Point>();
+        synchronized (cache) {
+            for (Point tile : tiles) {
+                Raster raster = cache.get(new TileKey(filename, tile.x, tile.y, analysis));
+                if (raster != null) {
+                    cached.put(tile, raster);
+                } else {
+                    missing.add(tile);
+                }
+            }
+        }
+        hitCount.addAndGet(cached.size());
+        missCount.addAndGet(missing.size());
+        if (missing.isEmpty()) return cached;
+
+        Map<Point, Raster> loaded = orbitImage.getTileData(missing, analysis);
+        for (Map.Entry<Point, Raster> entry : loaded.entrySet()) {
+            put(new TileKey(filename, entry.getKey().x, entry.getKey().y, analysis), entry.getValue());
+        }
+        // keep the order of the request
+        Map<Point, Raster> result = new LinkedHashMap<Point, Raster>(tiles.size());
+        for (Point tile : tiles) {
+            Raster raster = cached.get(tile);
+            if (raster == null) raster = loaded.get(tile);
+            if (raster != null) result.put(tile, raster);
+        }
+        return result;
+    }
+
+    private void put(TileKey key, Raster raster) {
+        long w = getWeight(raster);
+        if (w > maxWeight) return; // never cache a tile which would evict everything else
+        synchronized (cache) {
+            Raster old = cache.put(key, raster);
+            if (old != null) weight -= getWeight(old);
+            weight += w;
+            Iterator<Map.Entry<TileKey, Raster>> iter = cache.entrySet().iterator();
+            while (weight > maxWeight && iter.hasNext()) {
+                Map.Entry<TileKey, Raster> eldest = iter.next();
+                if (eldest.getKey().equals(key)) continue;
+                weight -= getWeight(eldest.getValue());
+                iter.remove();
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes occupied by the raster data (width*height*bands*bytesPerSample).
+     */
+    public static long getWeight(Raster raster) {
+        if (raster == null) return 0;
+        int bytesPerSample = Math.max(1, DataBuffer.getDataTypeSize(raster.getDataBuffer().getDataType()) / 8);
+        return (long) raster.getWidth() * raster.getHeight() * raster.getNumBands() * bytesPerSample;
+    }
+
+    /**
+     * Removes all tiles from the cache. Statistics are not reset.
+     */
+    public void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+            weight = 0;
+        }
+    }
+
+    public void resetStatistics() {
+        hitCount.set(0);
+        missCount.set(0);
+        evictionCount.set(0);
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns the hit rate (0..1), NaN if no request has been made so far.
+     */
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        if (total == 0) return Double.NaN;
+        return hits / (double) total;
+    }
+
+    public int getCachedTileCount() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getCachedWeight() {
+        synchronized (cache) {
+            return weight;
+        }
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public IOrbitImage getOrbitImage() {
+        return orbitImage;
+    }
+
+    @Override
+    public String toString() {
+        return "CachingOrbitImage [filename=" + orbitImage.getFilename() + ", tiles=" + getCachedTileCount() + ", weight=" + getCachedWeight() + "/" + maxWeight
+                + ", hits=" + hitCount.get() + ", misses=" + missCount.get() + ", evictions=" + evictionCount.get() + "]";
+    }
+
+    @Override
+    public void close() throws IOException {
+        clearCache();
+        orbitImage.close();
+    }
+
+    // delegates
+
+    @Override
+    public String readInfoString(String filename) throws OrbitImageServletException {
+        return orbitImage.readInfoString(filename);
+    }
+
+    @Override
+    public MinMaxPerChan getMinMaxAnalysis() {
+        return orbitImage.getMinMaxAnalysis();
+    }
+
+    @Override
+    public boolean is16bit() {
+        return orbitImage.is16bit();
+    }
+
+    @Override
+    public BufferedImage getOverviewImage() {
+        return orbitImage.getOverviewImage();
+    }
+
+    @Override
+    public String getFilename() {
+        return orbitImage.getFilename();
+    }
+
+    @Override
+    public int getWidth() {
+        return orbitImage.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return orbitImage.getHeight();
+    }
+
+    @Override
+    public int getTileWidth() {
+        return orbitImage.getTileWidth();
+    }
+
+    @Override
+    public int getTileHeight() {
+        return orbitImage.getTileHeight();
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+        return orbitImage.getTileGridXOffset();
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+        return orbitImage.getTileGridYOffset();
+    }
+
+    @Override
+    public int getMinX() {
+        return orbitImage.getMinX();
+    }
+
+    @Override
+    public int getMinY() {
+        return orbitImage.getMinY();
+    }
+
+    @Override
+    public int getNumBands() {
+        return orbitImage.getNumBands();
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return orbitImage.getColorModel();
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+        return orbitImage.getSampleModel();
+    }
+
+    @Override
+    public int getOriginalBitsPerSample() {
+        return orbitImage.getOriginalBitsPerSample();
+    }
+
+    @Override
+    public boolean getOriginalWasGrayScale() {
+        return orbitImage.getOriginalWasGrayScale();
+    }
+
+    @Override
+    public int getNumberOfParallelTileReads() {
+        return orbitImage.getNumberOfParallelTileReads();
+    }
+
+    /**
+     * Delegates directly, so walking all tiles does not evict the cached tiles.
+     */
+    @Override
+    public IntensityHistogram getIntensityHistogram() {
+        return orbitImage.getIntensityHistogram();
+    }
+
+
+    static final class TileKey {
+        private final String filename;
+        private final int tileX;
+        private final int tileY;
+        private final boolean analysis;
+
+        TileKey(String filename, int tileX, int tileY, boolean analysis) {
+            this.filename = filename;
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.analysis = analysis;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            TileKey tileKey = (TileKey) o;
+
+            if (tileX != tileKey.tileX) return false;
+            if (tileY != tileKey.tileY) return false;
+            if (analysis != tileKey.analysis) return false;
+            return filename != null ? filename.equals(tileKey.filename) : tileKey.filename == null;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = filename != null ? filename.hashCode() : 0;
+            result = 31 * result + tileX;
+            result = 31 * result + tileY;
+            result = 31 * result + (analysis ? 1 : 0);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return filename + "[" + tileX + "," + tileY + (analysis ? ",analysis" : "") + "]";
+        }
+    }
+
+}
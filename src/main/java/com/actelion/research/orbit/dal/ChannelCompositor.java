@@ -0,0 +1,319 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.dal;
+
+import com.actelion.research.orbit.beans.MinMaxPerChan;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Blends the channels of a multi-channel tile (e.g. fluorescence channels) into one RGB tile.<br>
+ * Every channel is scaled to 0..255 (by its min/max range or the maximum of its sample size, 255 for floating point data) and added with a constant RGB weight, which is
+ * precomputed from the channel hue (full saturation and brightness) multiplied by the channel contribution. Channels with
+ * zero contribution are skipped. The blending uses fixed point integer arithmetic and one pass per channel directly over
+ * the 8/16 bit sample arrays (other rasters fall back to Raster.getSamples()).
+ * <p>
+ * The result is a packed int raster for {@link #RGB_COLOR_MODEL}. The accumulation buffers are kept per thread and reused
+ * across calls. Instances are immutable and can be shared between threads.
+ * IOrbitImageMultiChannel implementations can delegate getTileData(tileX, tileY, channelContributions, analysis, analysisHues)
+ * to {@link #create(IOrbitImageMultiChannel, float[], boolean, float[])}.composite(tile).
+ */
+public class ChannelCompositor {
+
+    public static final DirectColorModel RGB_COLOR_MODEL = new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+    private static final int[] RGB_MASKS = {0xff0000, 0x00ff00, 0x0000ff};
+    private static final int WEIGHT_SHIFT = 12; // fractional bits of the channel weights
+    private static final int SCALE_SHIFT = 16;  // fractional bits of the range scale factors
+
+    private static final ThreadLocal<int[][]> buffers = new ThreadLocal<int[][]>() {
+        @Override
+        protected int[][] initialValue() {
+            return new int[4][0]; // r, g, b accumulators and one row of samples
+        }
+    };
+
+    private final int numChannels;
+    private final float[][] weights;
+    private final int[] weightR;
+    private final int[] weightG;
+    private final int[] weightB;
+    private final int[] rangeMin; // null: 0..max of the sample size
+    private final int[] rangeMax;
+
+    public ChannelCompositor(float[] hues, float[] contributions) {
+        this(hues, contributions, null);
+    }
+
+    /**
+     * @param hues          hue (0..1) per channel
+     * @param contributions weight per channel (usually 0..1), null for 1 for all channels
+     * @param range         intensity range per channel which is mapped to 0..255, null to use the full range of the sample size
+     */
+    public ChannelCompositor(float[] hues, float[] contributions, MinMaxPerChan range) {
+        if (hues == null) throw new IllegalArgumentException("hues must not be null");
+        if (contributions != null && contributions.length < hues.length) throw new IllegalArgumentException("contributions.length < hues.length");
+        this.numChannels = hues.length;
+        this.weights = new float[numChannels][3];
+        this.weightR = new int[numChannels];
+        this.weightG = new int[numChannels];
+        this.weightB = new int[numChannels];
+        for (int c = 0; c < numChannels; c++) {
+            float contribution = contributions != null ? Math.max(0f, contributions[c]) : 1f;
+            int rgb = Color.HSBtoRGB(hues[c], 1f, 1f);
+            weights[c][0] = ((rgb >> 16) & 0xff) / 255f * contribution;
+            weights[c][1] = ((rgb >> 8) & 0xff) / 255f * contribution;
+            weights[c][2] = (rgb & 0xff) / 255f * contribution;
+            weightR[c] = Math.round(weights[c][0] * (1 << WEIGHT_SHIFT));
+            weightG[c] = Math.round(weights[c][1] * (1 << WEIGHT_SHIFT));
+            weightB[c] = Math.round(weights[c][2] * (1 << WEIGHT_SHIFT));
+        }
+        if (range != null) {
+            if (range.getMin().length < numChannels || range.getMax().length < numChannels) throw new IllegalArgumentException("range has less channels than hues");
+            this.rangeMin = Arrays.copyOf(range.getMin(), numChannels);
+            this.rangeMax = Arrays.copyOf(range.getMax(), numChannels);
+        } else {
+            this.rangeMin = null;
+            this.rangeMax = null;
+        }
+    }
+
+    /**
+     * Creates a compositor for the image: in analysis mode the analysisHues are used (if not null), otherwise the image hues.
+     * If channelContributions is null the image contributions are used.
+     */
+    public static ChannelCompositor create(IOrbitImageMultiChannel image, float[] channelContributions, boolean analysis, float[] analysisHues) {
+        float[] hues = analysis && analysisHues != null ? analysisHues : image.getHues();
+        float[] contributions = channelContributions != null ? channelContributions : image.getChannelContributions();
+        return new ChannelCompositor(hues, contributions);
+    }
+
+    /**
+     * Blends the bands of the source (band i = channel i) into a new RGB raster at the location of the source.
+     */
+    public WritableRaster composite(Raster source) {
+        return composite(source, null);
+    }
+
+    /**
+     * Blends the bands of the source (band i = channel i) into target. If target is null a new RGB raster at the location of
+     * the source is created. The target can be any raster with at least 3 bands and the size of the source, e.g. a raster
+     * returned by a previous call (it must not be shared anymore).
+     *
+     * @return the target
+     */
+    public WritableRaster composite(Raster source, WritableRaster target) {
+        if (source.getNumBands() < numChannels) throw new IllegalArgumentException("source has " + source.getNumBands() + " bands, but " + numChannels + " channels are defined");
+        Raster[] channels = new Raster[numChannels];
+        int[] bands = new int[numChannels];
+        for (int c = 0; c < numChannels; c++) {
+            channels[c] = source;
+            bands[c] = c;
+        }
+        return composite(channels, bands, target);
+    }
+
+    /**
+     * Blends single band rasters (one per channel, all with the same bounds) into target (null to create a new RGB raster).
+     *
+     * @return the target
+     */
+    public WritableRaster composite(Raster[] channels, WritableRaster target) {
+        if (channels.length < numChannels) throw new IllegalArgumentException(channels.length + " channel rasters, but " + numChannels + " channels are defined");
+        return composite(channels, new int[numChannels], target);
+    }
+
+    private WritableRaster composite(Raster[] channels, int[] bands, WritableRaster target) {
+        Raster first = channels[0];
+        int w = first.getWidth();
+        int h = first.getHeight();
+        int n = w * h;
+        if (target == null) {
+            target = Raster.createPackedRaster(new DataBufferInt(n), w, h, w, RGB_MASKS, new Point(first.getMinX(), first.getMinY()));
+        } else if (target.getWidth() != w || target.getHeight() != h || target.getNumBands() < 3) {
+            throw new IllegalArgumentException("target raster must have the size of the source and at least 3 bands");
+        }
+
+        int[][] buf = buffers.get();
+        if (buf[0].length < n) {
+            for (int i = 0; i < 3; i++) buf[i] = new int[n];
+        } else {
+            for (int i = 0; i < 3; i++) Arrays.fill(buf[i], 0, n, 0);
+        }
+        if (buf[3].length < w) buf[3] = new int[w];
+        int[] accR = buf[0];
+        int[] accG = buf[1];
+        int[] accB = buf[2];
+
+        for (int c = 0; c < numChannels; c++) {
+            if (weightR[c] == 0 && weightG[c] == 0 && weightB[c] == 0) continue;
+            Raster raster = channels[c];
+            if (raster.getWidth() != w || raster.getHeight() != h) throw new IllegalArgumentException("all channel rasters must have the same size");
+            addChannel(c, raster, bands[c], accR, accG, accB, buf[3]);
+        }
+        writeTarget(target, accR, accG, accB, n);
+        return target;
+    }
+
+    /**
+     * Adds one channel to the accumulators: acc += scaled sample (0..255) * weight.
+     */
+    private void addChannel(int c, Raster raster, int band, int[] accR, int[] accG, int[] accB, int[] row) {
+        int w = raster.getWidth();
+        int h = raster.getHeight();
+        int min = rangeMin != null ? rangeMin[c] : 0;
+        int max = rangeMax != null ? rangeMax[c] : getMaxValue(raster, band);
+        int range = Math.max(1, max - min);
+        int scale = (int) ((255L << SCALE_SHIFT) / range);
+        int wr = weightR[c];
+        int wg = weightG[c];
+        int wb = weightB[c];
+
+        DataBuffer db = raster.getDataBuffer();
+        Object data = null;
+        int bank = 0;
+        if (raster.getSampleModel() instanceof ComponentSampleModel) {
+            bank = ((ComponentSampleModel) raster.getSampleModel()).getBankIndices()[band];
+            if (db instanceof DataBufferByte) data = ((DataBufferByte) db).getData(bank);
+            else if (db instanceof DataBufferUShort) data = ((DataBufferUShort) db).getData(bank);
+            else if (db instanceof DataBufferShort) data = ((DataBufferShort) db).getData(bank);
+        }
+
+        if (data != null) {
+            // direct access to the sample arrays
+            ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+            int pixelStride = sm.getPixelStride();
+            int scanlineStride = sm.getScanlineStride();
+            int base = db.getOffsets()[bank] + sm.getBandOffsets()[band]
+                    + (raster.getMinY() - raster.getSampleModelTranslateY()) * scanlineStride
+                    + (raster.getMinX() - raster.getSampleModelTranslateX()) * pixelStride;
+            int i = 0;
+            if (data instanceof byte[]) {
+                byte[] samples = (byte[]) data;
+                for (int y = 0; y < h; y++) {
+                    int idx = base + y * scanlineStride;
+                    for (int x = 0; x < w; x++, idx += pixelStride, i++) {
+                        int v = scale(samples[idx] & 0xff, min, range, scale);
+                        accR[i] += v * wr;
+                        accG[i] += v * wg;
+                        accB[i] += v * wb;
+                    }
+                }
+            } else {
+                short[] samples = (short[]) data;
+                for (int y = 0; y < h; y++) {
+                    int idx = base + y * scanlineStride;
+                    for (int x = 0; x < w; x++, idx += pixelStride, i++) {
+                        int v = scale(samples[idx] & 0xffff, min, range, scale);
+                        accR[i] += v * wr;
+                        accG[i] += v * wg;
+                        accB[i] += v * wb;
+                    }
+                }
+            }
+        } else {
+            int i = 0;
+            for (int y = 0; y < h; y++) {
+                raster.getSamples(raster.getMinX(), raster.getMinY() + y, w, 1, band, row);
+                for (int x = 0; x < w; x++, i++) {
+                    int v = scale(row[x], min, range, scale);
+                    accR[i] += v * wr;
+                    accG[i] += v * wg;
+                    accB[i] += v * wb;
+                }
+            }
+        }
+    }
+
+    private static int scale(int sample, int min, int range, int scale) {
+        int d = sample - min;
+        if (d <= 0) return 0;
+        if (d >= range) return 255;
+        return (int) (((long) d * scale + (1 << (SCALE_SHIFT - 1))) >> SCALE_SHIFT);
+    }
+
+    /**
+     * Maximum value of the sample size, 255 for floating point data (samples are truncated to int).
+     */
+    private static int getMaxValue(Raster raster, int band) {
+        int dataType = raster.getDataBuffer().getDataType();
+        if (dataType == DataBuffer.TYPE_FLOAT || dataType == DataBuffer.TYPE_DOUBLE) return 255;
+        int sampleSize = raster.getSampleModel().getSampleSize(band);
+        return sampleSize >= 31 ? Integer.MAX_VALUE : (1 << sampleSize) - 1;
+    }
+
+    private static void writeTarget(WritableRaster target, int[] accR, int[] accG, int[] accB, int n) {
+        int round = 1 << (WEIGHT_SHIFT - 1);
+        if (target.getDataBuffer() instanceof DataBufferInt && target.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && Arrays.equals(((SinglePixelPackedSampleModel) target.getSampleModel()).getBitMasks(), RGB_MASKS)
+                && target.getDataBuffer().getNumBanks() == 1) {
+            SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) target.getSampleModel();
+            int[] data = ((DataBufferInt) target.getDataBuffer()).getData();
+            int w = target.getWidth();
+            int h = target.getHeight();
+            int stride = sm.getScanlineStride();
+            int base = target.getDataBuffer().getOffset()
+                    + (target.getMinY() - target.getSampleModelTranslateY()) * stride
+                    + (target.getMinX() - target.getSampleModelTranslateX());
+            int i = 0;
+            for (int y = 0; y < h; y++) {
+                int idx = base + y * stride;
+                for (int x = 0; x < w; x++, idx++, i++) {
+                    int r = Math.min(255, (accR[i] + round) >> WEIGHT_SHIFT);
+                    int g = Math.min(255, (accG[i] + round) >> WEIGHT_SHIFT);
+                    int b = Math.min(255, (accB[i] + round) >> WEIGHT_SHIFT);
+                    data[idx] = (r << 16) | (g << 8) | b;
+                }
+            }
+        } else {
+            int[] band = new int[n];
+            int[][] acc = {accR, accG, accB};
+            for (int b = 0; b < 3; b++) {
+                for (int i = 0; i < n; i++) {
+                    band[i] = Math.min(255, (acc[b][i] + round) >> WEIGHT_SHIFT);
+                }
+                target.setSamples(target.getMinX(), target.getMinY(), target.getWidth(), target.getHeight(), b, band);
+            }
+        }
+    }
+
+    /**
+     * Returns the RGB weights (0..1 per color times the contribution) of the channel.
+     */
+    public float[] getWeights(int channel) {
+        return weights[channel].clone();
+    }
+
+    public int getNumChannels() {
+        return numChannels;
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.dal;
+
+import java.awt.image.DataBuffer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * DataBuffer (one bank) backed by a direct ByteBuffer, i.e. memory outside of the Java heap.<br>
+ * Supports TYPE_BYTE, TYPE_USHORT, TYPE_SHORT, TYPE_INT and TYPE_FLOAT. Rasters over this buffer work with all Raster methods
+ * (getSamples(), getPixels(), ...), but Java2D operations use the generic (slower) element access.
+ */
+public class DirectDataBuffer extends DataBuffer {
+
+    private final ByteBuffer bytes;
+    private final ShortBuffer shorts;
+    private final IntBuffer ints;
+    private final FloatBuffer floats;
+
+    /**
+     * Allocates a new direct buffer with size elements of the data type.
+     */
+    public DirectDataBuffer(int dataType, int size) {
+        this(dataType, ByteBuffer.allocateDirect(size * getBytesPerElement(dataType)), size);
+    }
+
+    /**
+     * Uses the given buffer (from position 0, in native byte order) for size elements of the data type.
+     */
+    public DirectDataBuffer(int dataType, ByteBuffer buffer, int size) {
+        super(dataType, size);
+        if (buffer.capacity() < (long) size * getBytesPerElement(dataType)) throw new IllegalArgumentException("buffer too small for " + size + " elements");
+        ByteBuffer b = buffer.duplicate().order(ByteOrder.nativeOrder());
+        ((Buffer) b).clear();
+        this.bytes = b;
+        this.shorts = dataType == TYPE_USHORT || dataType == TYPE_SHORT ? b.asShortBuffer() : null;
+        this.ints = dataType == TYPE_INT ? b.asIntBuffer() : null;
+        this.floats = dataType == TYPE_FLOAT ? b.asFloatBuffer() : null;
+    }
+
+    public static int getBytesPerElement(int dataType) {
+        switch (dataType) {
+            case TYPE_BYTE:
+                return 1;
+            case TYPE_USHORT:
+            case TYPE_SHORT:
+                return 2;
+            case TYPE_INT:
+            case TYPE_FLOAT:
+                return 4;
+            default:
+                throw new IllegalArgumentException("unsupported data type " + dataType);
+        }
+    }
+
+    @Override
+    public int getElem(int bank, int i) {
+        switch (dataType) {
+            case TYPE_BYTE:
+                return bytes.get(i) & 0xff;
+            case TYPE_USHORT:
+                return shorts.get(i) & 0xffff;
+            case TYPE_SHORT:
+                return shorts.get(i);
+            case TYPE_INT:
+                return ints.get(i);
+            default:
+                return (int) floats.get(i);
+        }
+    }
+
+    @Override
+    public void setElem(int bank, int i, int val) {
+        switch (dataType) {
+            case TYPE_BYTE:
+                bytes.put(i, (byte) val);
+                break;
+            case TYPE_USHORT:
+            case TYPE_SHORT:
+                shorts.put(i, (short) val);
+                break;
+            case TYPE_INT:
+                ints.put(i, val);
+                break;
+            default:
+                floats.put(i, val);
+        }
+    }
+
+    @Override
+    public float getElemFloat(int bank, int i) {
+        return dataType == TYPE_FLOAT ? floats.get(i) : getElem(bank, i);
+    }
+
+    @Override
+    public void setElemFloat(int bank, int i, float val) {
+        if (dataType == TYPE_FLOAT) floats.put(i, val);
+        else setElem(bank, i, (int) val);
+    }
+
+    @Override
+    public double getElemDouble(int bank, int i) {
+        return getElemFloat(bank, i);
+    }
+
+    @Override
+    public void setElemDouble(int bank, int i, double val) {
+        setElemFloat(bank, i, (float) val);
+    }
+
+    /**
+     * Returns the underlying direct buffer (native byte order).
+     */
+    public ByteBuffer getBuffer() {
+        return bytes;
+    }
+
+}
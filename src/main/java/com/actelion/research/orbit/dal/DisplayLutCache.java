@@ -0,0 +1,185 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.dal;
+
+import com.actelion.research.orbit.beans.MinMaxPerChan;
+import com.actelion.research.orbit.utils.ExpiringCache;
+import com.actelion.research.orbit.utils.ImageAdjustment;
+import com.actelion.research.orbit.utils.IntensityHistogram;
+import com.actelion.research.orbit.utils.IntensityLut;
+
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * Converts (16 bit) tiles to 8 bit display tiles with cached IntensityLut tables, one per (image, channel, adjustment).<br>
+ * The intensity window of a channel is either the image's getMinMaxAnalysis() range or, if quantiles are given, the quantiles of
+ * the image's intensity histogram (computed once per image and cached, which reads all tiles of the image, so it should be used
+ * with a low resolution level). Without a window the full range of the sample size is used.
+ * So panning never rebuilds a table, only the per-sample lookup is done per tile.
+ * <p>
+ * Thread-safe.
+ */
+public class DisplayLutCache {
+
+    public static final int DEFAULT_MAX_TABLES = 128; // 64 KB per 16 bit table
+
+    private final ExpiringCache<LutKey, IntensityLut> tables;
+    private final ExpiringCache<String, MinMaxPerChan> windows = new ExpiringCache<String, MinMaxPerChan>(64, 0);
+    private final double lowQuantile;
+    private final double highQuantile;
+
+    /**
+     * Uses the getMinMaxAnalysis() range of the images as intensity window.
+     */
+    public DisplayLutCache() {
+        this(DEFAULT_MAX_TABLES, -1, -1);
+    }
+
+    /**
+     * @param maxTables    maximum number of cached tables
+     * @param lowQuantile  quantile (0..1) mapped to 0, e.g. 0.01, or &lt;0 to use getMinMaxAnalysis()
+     * @param highQuantile quantile (0..1) mapped to 255, e.g. 0.99
+     */
+    public DisplayLutCache(int maxTables, double lowQuantile, double highQuantile) {
+        if (lowQuantile >= 0 && (highQuantile <= lowQuantile || highQuantile > 1)) throw new IllegalArgumentException("highQuantile must be in (lowQuantile,1]");
+        this.tables = new ExpiringCache<LutKey, IntensityLut>(maxTables, 0);
+        this.lowQuantile = lowQuantile;
+        this.highQuantile = highQuantile;
+    }
+
+    /**
+     * Converts all bands of the tile to an 8 bit raster (target is reused if not null, see IntensityLut.apply()).
+     * Only integer tiles with up to 16 bits per sample are supported.
+     */
+    public WritableRaster toDisplay(IOrbitImage image, Raster tile, ImageAdjustment adjustment, WritableRaster target) {
+        int bitsPerSample = IntensityHistogram.getBitsPerSample(tile);
+        if (bitsPerSample < 1 || bitsPerSample > 16) {
+            throw new IllegalArgumentException("only integer tiles with up to 16 bits per sample can be converted to display tiles (data type "
+                    + tile.getDataBuffer().getDataType() + ", " + bitsPerSample + " bits per sample)");
+        }
+        int bands = tile.getNumBands();
+        IntensityLut[] luts = new IntensityLut[bands];
+        for (int b = 0; b < bands; b++) {
+            luts[b] = getLut(image, b, bitsPerSample, adjustment);
+        }
+        return IntensityLut.apply(tile, luts, target);
+    }
+
+    /**
+     * Returns the cached table of the channel or builds it.
+     *
+     * @param bitsPerSample bits per sample of the tiles (1..16, usually 8 or 16)
+     */
+    public IntensityLut getLut(IOrbitImage image, int channel, int bitsPerSample, ImageAdjustment adjustment) {
+        if (bitsPerSample < 1 || bitsPerSample > 16) throw new IllegalArgumentException("bitsPerSample must be in 1..16 (was " + bitsPerSample + ")");
+        if (adjustment == null) adjustment = ImageAdjustment.NONE;
+        LutKey key = new LutKey(image.getFilename(), channel, bitsPerSample, adjustment);
+        IntensityLut lut = tables.get(key);
+        if (lut == null) {
+            long stamp = tables.getStamp();
+            int maxValue = (1 << bitsPerSample) - 1;
+            int min = 0;
+            int max = maxValue;
+            MinMaxPerChan window = getWindow(image);
+            if (window != null && window.getMin() != null && window.getMax() != null && channel < window.getMin().length && channel < window.getMax().length
+                    && window.getMax()[channel] > window.getMin()[channel]) {
+                min = window.getMin()[channel];
+                max = window.getMax()[channel];
+            }
+            lut = new IntensityLut(bitsPerSample, min, max, adjustment);
+            tables.put(key, lut, stamp);
+        }
+        return lut;
+    }
+
+    private MinMaxPerChan getWindow(IOrbitImage image) {
+        if (lowQuantile < 0) return image.getMinMaxAnalysis();
+        MinMaxPerChan window = windows.get(image.getFilename());
+        if (window == null) {
+            IntensityHistogram histogram = image.getIntensityHistogram();
+            if (histogram == null) return null;
+            window = histogram.toMinMaxPerChan(lowQuantile, highQuantile);
+            windows.put(image.getFilename(), window);
+        }
+        return window;
+    }
+
+    /**
+     * Removes the tables and the cached intensity window of the image, e.g. after its min/max values changed.
+     */
+    public void invalidate(final String filename) {
+        tables.removeIf((key, lut) -> key.filename.equals(filename));
+        windows.remove(filename);
+    }
+
+    public void clear() {
+        tables.clear();
+        windows.clear();
+    }
+
+    public int getNumTables() {
+        return tables.size();
+    }
+
+    public long getHitCount() {
+        return tables.getHitCount();
+    }
+
+    public long getMissCount() {
+        return tables.getMissCount();
+    }
+
+    /**
+     * Returns the table hit rate (0..1) or NaN if no table has been requested.
+     */
+    public double getHitRate() {
+        return tables.getHitRate();
+    }
+
+
+    private static final class LutKey {
+        private final String filename;
+        private final int channel;
+        private final int bitsPerSample;
+        private final ImageAdjustment adjustment;
+
+        LutKey(String filename, int channel, int bitsPerSample, ImageAdjustment adjustment) {
+            this.filename = filename;
+            this.channel = channel;
+            this.bitsPerSample = bitsPerSample;
+            this.adjustment = adjustment;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof LutKey)) return false;
+            LutKey that = (LutKey) o;
+            return channel == that.channel && bitsPerSample == that.bitsPerSample && filename.equals(that.filename) && adjustment.equals(that.adjustment);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((filename.hashCode() * 31 + channel) * 31 + bitsPerSample) * 31 + adjustment.hashCode();
+        }
+    }
+
+}
@@ -0,0 +1,263 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.dal;
+
+import com.actelion.research.orbit.beans.MinMaxPerChan;
+import com.actelion.research.orbit.exceptions.OrbitImageServletException;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Image with half the width and height of a source image, computed on the fly by 2x2 area averaging.<br>
+ * Tiles have the size of the source tiles, so each tile is computed from (up to) 2x2 source tiles, which are read with one
+ * batch getTileData() call. At the image border only the pixels inside the source image are averaged.
+ * Tiles are computed on every call, wrap the image in a {@link CachingOrbitImage} to cache them.
+ * <p>
+ * close() does not close the source image.
+ */
+public class DownsampledOrbitImage implements IOrbitImage {
+
+    protected final IOrbitImage source;
+    private final String filename;
+    private final int minX;
+    private final int minY;
+    private final int width;
+    private final int height;
+    private final int tileGridXOffset;
+    private final int tileGridYOffset;
+
+    /**
+     * @param source   the image to downsample
+     * @param filename the name of this image (e.g. the source filename with the level), must differ from the source filename
+     *                 because tile caches use it as key
+     */
+    public DownsampledOrbitImage(IOrbitImage source, String filename) {
+        this.source = source;
+        this.filename = filename;
+        this.minX = Math.floorDiv(source.getMinX(), 2);
+        this.minY = Math.floorDiv(source.getMinY(), 2);
+        this.width = Math.max(1, Math.floorDiv(source.getMinX() + source.getWidth() + 1, 2) - minX);
+        this.height = Math.max(1, Math.floorDiv(source.getMinY() + source.getHeight() + 1, 2) - minY);
+        this.tileGridXOffset = Math.floorDiv(source.getTileGridXOffset(), 2);
+        this.tileGridYOffset = Math.floorDiv(source.getTileGridYOffset(), 2);
+    }
+
+    @Override
+    public Raster getTileData(int tileX, int tileY, boolean analysis) {
+        Rectangle tile = new Rectangle(tileGridXOffset + tileX * getTileWidth(), tileGridYOffset + tileY * getTileHeight(), getTileWidth(), getTileHeight());
+        Rectangle sourceBounds = new Rectangle(source.getMinX(), source.getMinY(), source.getWidth(), source.getHeight());
+        Rectangle sourceRect = new Rectangle(tile.x * 2, tile.y * 2, tile.width * 2, tile.height * 2).intersection(sourceBounds);
+        if (sourceRect.isEmpty()) return null;
+        Raster region = readRegion(source, sourceRect, analysis);
+        if (region == null) return null;
+        WritableRaster result = region.createCompatibleWritableRaster(tile.x, tile.y, tile.width, tile.height);
+        average(region, result);
+        return result;
+    }
+
+    /**
+     * Reads the rectangle (in image coordinates) of the image into one raster, null if the image returns no tiles.
+     */
+    static WritableRaster readRegion(IOrbitImage image, Rectangle rect, boolean analysis) {
+        int tw = image.getTileWidth();
+        int th = image.getTileHeight();
+        int minTileX = Math.floorDiv(rect.x - image.getTileGridXOffset(), tw);
+        int minTileY = Math.floorDiv(rect.y - image.getTileGridYOffset(), th);
+        int maxTileX = Math.floorDiv(rect.x + rect.width - 1 - image.getTileGridXOffset(), tw);
+        int maxTileY = Math.floorDiv(rect.y + rect.height - 1 - image.getTileGridYOffset(), th);
+        List<Point> tiles = new ArrayList<Point>();
+        for (int ty = minTileY; ty <= maxTileY; ty++) {
+            for (int tx = minTileX; tx <= maxTileX; tx++) {
+                tiles.add(new Point(tx, ty));
+            }
+        }
+        Map<Point, Raster> rasters = image.getTileData(tiles, analysis);
+        WritableRaster region = null;
+        for (Raster raster : rasters.values()) {
+            if (region == null) region = raster.createCompatibleWritableRaster(rect.x, rect.y, rect.width, rect.height);
+            region.setRect(raster);
+        }
+        return region;
+    }
+
+    /**
+     * 2x2 area averaging of the source into the target, pixels of the source region outside of the source raster are ignored.
+     */
+    private static void average(Raster src, WritableRaster dst) {
+        int sx0 = src.getMinX();
+        int sy0 = src.getMinY();
+        int sx1 = sx0 + src.getWidth();
+        int sy1 = sy0 + src.getHeight();
+        int dx0 = Math.max(dst.getMinX(), Math.floorDiv(sx0, 2));
+        int dy0 = Math.max(dst.getMinY(), Math.floorDiv(sy0, 2));
+        int dx1 = Math.min(dst.getMinX() + dst.getWidth(), Math.floorDiv(sx1 + 1, 2));
+        int dy1 = Math.min(dst.getMinY() + dst.getHeight(), Math.floorDiv(sy1 + 1, 2));
+        int w = dx1 - dx0;
+        if (w <= 0 || dy1 <= dy0) return;
+        int sw = src.getWidth();
+        boolean floatingPoint = src.getDataBuffer().getDataType() == DataBuffer.TYPE_FLOAT || src.getDataBuffer().getDataType() == DataBuffer.TYPE_DOUBLE;
+        double[] row0 = new double[sw];
+        double[] row1 = new double[sw];
+        double[] out = new double[w];
+        for (int b = 0; b < src.getNumBands(); b++) {
+            for (int dy = dy0; dy < dy1; dy++) {
+                int y0 = Math.max(sy0, dy * 2);
+                int y1 = Math.min(sy1 - 1, dy * 2 + 1);
+                src.getSamples(sx0, y0, sw, 1, b, row0);
+                if (y1 != y0) src.getSamples(sx0, y1, sw, 1, b, row1);
+                int rows = y1 != y0 ? 2 : 1;
+                for (int i = 0; i < w; i++) {
+                    int x0 = Math.max(sx0, (dx0 + i) * 2) - sx0;
+                    int x1 = Math.min(sx1 - 1, (dx0 + i) * 2 + 1) - sx0;
+                    double sum = row0[x0];
+                    if (rows == 2) sum += row1[x0];
+                    int n = rows;
+                    if (x1 != x0) {
+                        sum += row0[x1];
+                        if (rows == 2) sum += row1[x1];
+                        n += rows;
+                    }
+                    out[i] = floatingPoint ? sum / n : Math.floor(sum / n + 0.5);
+                }
+                dst.setSamples(dx0, dy, w, 1, b, out);
+            }
+        }
+    }
+
+    public IOrbitImage getSource() {
+        return source;
+    }
+
+    @Override
+    public void close() {
+        // the source is owned by the caller
+    }
+
+    @Override
+    public String readInfoString(String filename) throws OrbitImageServletException {
+        return source.readInfoString(filename);
+    }
+
+    @Override
+    public MinMaxPerChan getMinMaxAnalysis() {
+        return source.getMinMaxAnalysis();
+    }
+
+    @Override
+    public boolean is16bit() {
+        return source.is16bit();
+    }
+
+    @Override
+    public BufferedImage getOverviewImage() {
+        return source.getOverviewImage();
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return source.getTileWidth();
+    }
+
+    @Override
+    public int getTileHeight() {
+        return source.getTileHeight();
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+        return tileGridXOffset;
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+        return tileGridYOffset;
+    }
+
+    @Override
+    public int getMinX() {
+        return minX;
+    }
+
+    @Override
+    public int getMinY() {
+        return minY;
+    }
+
+    @Override
+    public int getNumBands() {
+        return source.getNumBands();
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return source.getColorModel();
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+        return source.getSampleModel();
+    }
+
+    @Override
+    public int getOriginalBitsPerSample() {
+        return source.getOriginalBitsPerSample();
+    }
+
+    @Override
+    public boolean getOriginalWasGrayScale() {
+        return source.getOriginalWasGrayScale();
+    }
+
+    @Override
+    public int getNumberOfParallelTileReads() {
+        return source.getNumberOfParallelTileReads();
+    }
+
+    @Override
+    public String toString() {
+        return "DownsampledOrbitImage [filename=" + filename + ", " + width + "x" + height + ", source=" + source.getFilename() + "]";
+    }
+
+}
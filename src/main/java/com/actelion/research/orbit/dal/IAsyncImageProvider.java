@@ -0,0 +1,81 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.dal;
+
+import com.actelion.research.orbit.beans.HCSMetaData;
+import com.actelion.research.orbit.beans.RawAnnotation;
+import com.actelion.research.orbit.beans.RawData;
+import com.actelion.research.orbit.beans.RawDataFile;
+import com.actelion.research.orbit.beans.RawMeta;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking companion of {@link IImageProvider} for the frequently used query methods.<br>
+ * All methods return immediately, the result (or the exception thrown by the underlying provider) is delivered
+ * via the CompletableFuture, so independent queries, e.g. metas, annotations and thumbnail of a file,
+ * can run concurrently and be composed.
+ * <p>
+ * {@link AsyncImageProviderAdapter} lifts any synchronous IImageProvider onto a bounded executor.
+ */
+public interface IAsyncImageProvider extends Closeable {
+
+    /**
+     * Returns the underlying synchronous image provider.
+     */
+    IImageProvider getImageProvider();
+
+    // RawData
+    CompletableFuture<RawData> LoadRawData(int rawDataId);
+
+    // RawDataFile
+    CompletableFuture<RawDataFile> LoadRawDataFile(int rdfId);
+
+    CompletableFuture<List<RawDataFile>> LoadRawDataFiles(int rawDataId);
+
+    CompletableFuture<List<RawDataFile>> LoadRawDataFiles(int rawDataId, List<String> fileTypes, int limit);
+
+    CompletableFuture<List<RawDataFile>> LoadRawDataFilesSearch(String search, boolean andMode, int limit, List<String> fileTypes);
+
+    CompletableFuture<BufferedImage> getThumbnail(RawDataFile rdf);
+
+    CompletableFuture<BufferedImage> getOverviewImage(RawDataFile rdf);
+
+    CompletableFuture<BufferedImage> getLabelImage(RawDataFile rdf);
+
+    // RawMeta
+    CompletableFuture<List<RawMeta>> LoadRawMetasByRawDataFile(int rdfId);
+
+    CompletableFuture<List<RawMeta>> LoadRawMetasByRawData(int rawDataId);
+
+    // RawAnnotation
+    CompletableFuture<List<RawAnnotation>> LoadRawAnnotationsByRawDataFile(int rdfId);
+
+    CompletableFuture<List<RawAnnotation>> LoadRawAnnotationsByRawDataFile(int rdfId, int rawAnnotationType);
+
+    CompletableFuture<HCSMetaData> LoadHCSMetaData(int rdfId);
+
+    // Image
+    CompletableFuture<IOrbitImage> createOrbitImage(RawDataFile rdf, int level);
+
+}
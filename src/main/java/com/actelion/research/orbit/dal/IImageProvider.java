@@ -28,7 +28,10 @@ import com.actelion.research.orbit.utils.IRdfToInputStream;
 import java.awt.image.BufferedImage;
 import java.io.Closeable;
 import java.net.URL;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public interface IImageProvider extends Closeable {
@@ -79,10 +82,30 @@ public interface IImageProvider extends Closeable {
 
     IRdfToInputStream getRdfToInputStream(); // e.g. used in downloader
 
+    /**
+     * Loads the thumbnails of several files, key is the rdfId (files without thumbnail are omitted).<br>
+     * The default implementation calls getThumbnail() in parallel (getNumberOfAllowedParallelImageReads() concurrent calls).
+     */
+    default Map<Integer, BufferedImage> getThumbnails(Collection<RawDataFile> rdfs) throws Exception {
+        Map<Integer, RawDataFile> rdfMap = new LinkedHashMap<>(rdfs.size());
+        for (RawDataFile rdf : rdfs) {
+            rdfMap.put(rdf.getRawDataFileId(), rdf);
+        }
+        return BulkLoader.loadAll(rdfMap.keySet(), getNumberOfAllowedParallelImageReads(), rdfId -> getThumbnail(rdfMap.get(rdfId)));
+    }
+
 
     // RawMeta
     List<RawMeta> LoadRawMetasByRawDataFile(int rdfId) throws Exception;
 
+    /**
+     * Loads the metas of several files, key is the rdfId. Implementations should override this method with one batched query (e.g. IN clause).<br>
+     * The default implementation calls LoadRawMetasByRawDataFile() in parallel (getNumberOfAllowedParallelImageReads() concurrent calls).
+     */
+    default Map<Integer, List<RawMeta>> LoadRawMetasByRawDataFiles(Collection<Integer> rdfIds) throws Exception {
+        return BulkLoader.loadAll(rdfIds, getNumberOfAllowedParallelImageReads(), this::LoadRawMetasByRawDataFile);
+    }
+
     List<RawMeta> LoadRawMetasByRawData(int rdfId) throws Exception;
 
     List<RawMeta> LoadRawMetasByRawDataFileAndName(int rdfId, String name) throws Exception;
@@ -100,6 +123,14 @@ public interface IImageProvider extends Closeable {
 
     List<RawAnnotation> LoadRawAnnotationsByRawDataFile(int rdfID) throws Exception;
 
+    /**
+     * Loads the annotations of several files, key is the rdfId. Implementations should override this method with one batched query (e.g. IN clause).<br>
+     * The default implementation calls LoadRawAnnotationsByRawDataFile() in parallel (getNumberOfAllowedParallelImageReads() concurrent calls).
+     */
+    default Map<Integer, List<RawAnnotation>> LoadRawAnnotationsByRawDataFiles(Collection<Integer> rdfIds) throws Exception {
+        return BulkLoader.loadAll(rdfIds, getNumberOfAllowedParallelImageReads(), this::LoadRawAnnotationsByRawDataFile);
+    }
+
     List<RawAnnotation> LoadRawAnnotationsByRawDataFile(int rdfID, int rawAnnotationType) throws Exception;
 
     List<RawAnnotation> LoadRawAnnotationsByType(int annotationType) throws Exception;
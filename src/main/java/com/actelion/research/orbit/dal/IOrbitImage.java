@@ -21,12 +21,22 @@ package com.actelion.research.orbit.dal;
 
 import com.actelion.research.orbit.beans.MinMaxPerChan;
 import com.actelion.research.orbit.exceptions.OrbitImageServletException;
+import com.actelion.research.orbit.utils.IntensityHistogram;
+import com.actelion.research.orbit.utils.ParallelTasks;
 
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.Raster;
 import java.awt.image.SampleModel;
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 public interface IOrbitImage extends Closeable {
     String readInfoString(String filename) throws OrbitImageServletException;
@@ -67,4 +77,95 @@ public interface IOrbitImage extends Closeable {
 
     boolean getOriginalWasGrayScale();
 
+    /**
+     * Maximum number of concurrent getTileData() calls used by the batch read, e.g. IImageProvider.getNumberOfAllowedParallelImageReads().
+     */
+    default int getNumberOfParallelTileReads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Reads several tiles at once. The result map contains the tiles in the order of the request (tiles without data are omitted).<br>
+     * The default implementation reads the tiles in parallel on the shared ParallelTasks pool (up to getNumberOfParallelTileReads() concurrent reads).
+     * Implementations should override this method if they can coalesce reads, e.g. contiguous strips in one seek or many tiles in one request.
+     */
+    default Map<Point, Raster> getTileData(Collection<Point> tiles, final boolean analysis) {
+        Map<Point, Raster> result = new LinkedHashMap<>(tiles.size());
+        if (tiles.isEmpty()) return result;
+        List<Callable<Raster>> reads = new ArrayList<>(tiles.size());
+        for (final Point tile : tiles) {
+            reads.add(() -> getTileData(tile.x, tile.y, analysis));
+        }
+        List<Raster> rasters;
+        try {
+            rasters = ParallelTasks.invokeAll(reads, getNumberOfParallelTileReads());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while reading tiles of " + getFilename(), e);
+        } catch (Exception e) {
+            throw new RuntimeException("error reading tiles of " + getFilename(), e);
+        }
+        int i = 0;
+        for (Point tile : tiles) {
+            Raster raster = rasters.get(i++);
+            if (raster != null) result.put(tile, raster);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the per channel intensity histogram (exact for up to 16 bit data, a quantile sketch for floating point data),
+     * e.g. for percentile based contrast stretching. Returns null if the image has no tiles.<br>
+     * The default implementation reads the tile rows in parallel (up to getNumberOfParallelTileReads() concurrent readers on the
+     * shared ParallelTasks pool), each reader fills its own histogram and the partial histograms are merged at the end.
+     * Every tile is read once, so for large images this should be called on a low resolution level.
+     */
+    default IntensityHistogram getIntensityHistogram() {
+        final Rectangle imageBounds = new Rectangle(getMinX(), getMinY(), getWidth(), getHeight());
+        final int tw = getTileWidth();
+        final int th = getTileHeight();
+        final int minTileX = Math.floorDiv(getMinX() - getTileGridXOffset(), tw);
+        final int minTileY = Math.floorDiv(getMinY() - getTileGridYOffset(), th);
+        final int maxTileX = Math.floorDiv(getMinX() + getWidth() - 1 - getTileGridXOffset(), tw);
+        final int maxTileY = Math.floorDiv(getMinY() + getHeight() - 1 - getTileGridYOffset(), th);
+        final int numReaders = Math.max(1, Math.min(getNumberOfParallelTileReads(), maxTileY - minTileY + 1));
+
+        List<Callable<IntensityHistogram>> readers = new ArrayList<>(numReaders);
+        for (int t = 0; t < numReaders; t++) {
+            final int firstRow = minTileY + t;
+            readers.add(() -> {
+                IntensityHistogram hist = null;
+                for (int ty = firstRow; ty <= maxTileY; ty += numReaders) {
+                    for (int tx = minTileX; tx <= maxTileX; tx++) {
+                        Raster raster = getTileData(tx, ty, true);
+                        if (raster == null) continue;
+                        if (hist == null) hist = IntensityHistogram.forRaster(raster);
+                        hist.add(raster, imageBounds);
+                    }
+                }
+                return hist;
+            });
+        }
+        List<IntensityHistogram> partials;
+        try {
+            partials = ParallelTasks.invokeAll(readers, numReaders);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while computing the intensity histogram of " + getFilename(), e);
+        } catch (Exception e) {
+            throw new RuntimeException("error computing the intensity histogram of " + getFilename(), e);
+        }
+        IntensityHistogram result = null;
+        for (IntensityHistogram partial : partials) {
+            if (partial == null) continue;
+            if (result == null) result = partial;
+            else result.merge(partial);
+        }
+        return result;
+    }
+
 }
@@ -28,6 +28,9 @@ import java.awt.image.Raster;
  */
 public interface IOrbitImageMultiChannel extends IOrbitImage {
     ColorModel getColorModel();
+    /**
+     * Returns the tile with all channels blended to RGB, see ChannelCompositor.
+     */
     Raster getTileData(int tileX, int tileY, float[] channelContributions, boolean analysis, float[] analysisHues);
     String[] getChannelNames();
     void setChannelNames(String[] channelNames);
@@ -0,0 +1,274 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.dal;
+
+import com.actelion.research.orbit.utils.Logger;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefetches the tiles a viewport is about to reach.<br>
+ * Each call of {@link #prefetch(Rectangle, double, double)} computes the ring of tiles around the viewport
+ * (extended in the direction of movement) and schedules getTileData() calls for them on a bounded executor.
+ * Requests which are not part of the new ring anymore (e.g. because the direction changed) are cancelled.
+ * Tiles which have already been fetched are remembered while they stay in the ring, so only tiles entering the ring are scheduled.
+ * <p>
+ * The prefetcher just calls getTileData() and discards the result, so the image should be a caching image,
+ * e.g. a {@link CachingOrbitImage}.
+ */
+public class OrbitImagePrefetcher implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(OrbitImagePrefetcher.class);
+    private static final AtomicInteger poolNumber = new AtomicInteger(1);
+
+    protected final IOrbitImage orbitImage;
+    protected final int lookahead;
+    private final ThreadPoolExecutor executor;
+    private final Map<Point, Future<?>> pending = new HashMap<Point, Future<?>>();
+    private final Set<Point> fetched = new HashSet<Point>(); // fetched tiles of the current ring, guarded by pending
+    private final AtomicLong scheduledCount = new AtomicLong(0);
+    private final AtomicLong cancelledCount = new AtomicLong(0);
+    private volatile boolean analysis = false;
+
+    /**
+     * Creates a prefetcher which uses imageProvider.getNumberOfAllowedParallelImageReads() as concurrency cap.
+     */
+    public OrbitImagePrefetcher(IOrbitImage orbitImage, IImageProvider imageProvider) {
+        this(orbitImage, imageProvider.getNumberOfAllowedParallelImageReads(), 1);
+    }
+
+    /**
+     * @param orbitImage    the (caching) image to prefetch tiles from
+     * @param parallelReads maximum number of concurrent getTileData() calls
+     * @param lookahead     number of tile rows/columns to prefetch in the direction of movement
+     */
+    public OrbitImagePrefetcher(IOrbitImage orbitImage, int parallelReads, int lookahead) {
+        if (orbitImage == null) throw new IllegalArgumentException("orbitImage must not be null");
+        this.orbitImage = orbitImage;
+        this.lookahead = Math.max(1, lookahead);
+        final int threads = Math.max(1, parallelReads);
+        final String prefix = "OrbitImagePrefetcher-" + poolNumber.getAndIncrement() + "-";
+        this.executor = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedules the tiles around the viewport.
+     *
+     * @param viewport  visible region in image coordinates (level 0 of this image)
+     * @param velocityX movement hint in x direction (only the sign is used), 0 if not moving
+     * @param velocityY movement hint in y direction (only the sign is used), 0 if not moving
+     */
+    public void prefetch(Rectangle viewport, double velocityX, double velocityY) {
+        if (viewport == null || viewport.isEmpty() || executor.isShutdown()) return;
+        final List<Point> tiles = computeTiles(viewport, velocityX, velocityY);
+        final Set<Point> ring = new HashSet<Point>(tiles);
+        synchronized (pending) {
+            fetched.retainAll(ring);
+            // cancel stale requests, running requests are not interrupted (interrupts might close NIO channels of the reader)
+            boolean cancelled = false;
+            Iterator<Map.Entry<Point, Future<?>>> iter = pending.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<Point, Future<?>> entry = iter.next();
+                if (entry.getValue().isDone()) {
+                    if (!entry.getValue().isCancelled() && ring.contains(entry.getKey())) fetched.add(entry.getKey());
+                    iter.remove();
+                } else if (!ring.contains(entry.getKey())) {
+                    if (entry.getValue().cancel(false)) {
+                        cancelledCount.incrementAndGet();
+                        cancelled = true;
+                    }
+                    iter.remove();
+                }
+            }
+            if (cancelled) executor.purge(); // cancelled requests would otherwise stay in the queue until a thread takes them
+            for (final Point tile : tiles) {
+                if (pending.containsKey(tile) || fetched.contains(tile)) continue;
+                FutureTask<Void> request = new FutureTask<Void>(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            orbitImage.getTileData(tile.x, tile.y, analysis);
+                        } catch (Exception e) {
+                            logger.debug("error prefetching tile " + tile.x + "/" + tile.y + ": " + e.getMessage());
+                        }
+                    }
+                }, null) {
+                    @Override
+                    protected void done() {
+                        if (isCancelled()) return; // removed by the cancelling caller
+                        synchronized (pending) {
+                            if (pending.remove(tile, this)) fetched.add(tile); // the tile might have been rescheduled in the meantime
+                        }
+                    }
+                };
+                pending.put(tile, request);
+                executor.execute(request);
+                scheduledCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Computes the tiles to prefetch, nearest tiles first. Tiles intersecting the viewport are excluded because they
+     * are requested by the renderer anyway.
+     */
+    protected List<Point> computeTiles(Rectangle viewport, double velocityX, double velocityY) {
+        final int tw = orbitImage.getTileWidth();
+        final int th = orbitImage.getTileHeight();
+        final int offX = orbitImage.getTileGridXOffset();
+        final int offY = orbitImage.getTileGridYOffset();
+        final int minTileX = Math.floorDiv(orbitImage.getMinX() - offX, tw);
+        final int minTileY = Math.floorDiv(orbitImage.getMinY() - offY, th);
+        final int maxTileX = Math.floorDiv(orbitImage.getMinX() + orbitImage.getWidth() - 1 - offX, tw);
+        final int maxTileY = Math.floorDiv(orbitImage.getMinY() + orbitImage.getHeight() - 1 - offY, th);
+
+        final int vx0 = Math.floorDiv(viewport.x - offX, tw);
+        final int vy0 = Math.floorDiv(viewport.y - offY, th);
+        final int vx1 = Math.floorDiv(viewport.x + viewport.width - 1 - offX, tw);
+        final int vy1 = Math.floorDiv(viewport.y + viewport.height - 1 - offY, th);
+
+        final int dirX = (int) Math.signum(velocityX);
+        final int dirY = (int) Math.signum(velocityY);
+        int x0, x1, y0, y1;
+        if (dirX == 0 && dirY == 0) {
+            // not moving: one ring in all directions
+            x0 = vx0 - 1;
+            x1 = vx1 + 1;
+            y0 = vy0 - 1;
+            y1 = vy1 + 1;
+        } else {
+            x0 = dirX < 0 ? vx0 - lookahead : vx0;
+            x1 = dirX > 0 ? vx1 + lookahead : vx1;
+            y0 = dirY < 0 ? vy0 - lookahead : vy0;
+            y1 = dirY > 0 ? vy1 + lookahead : vy1;
+        }
+        x0 = Math.max(x0, minTileX);
+        y0 = Math.max(y0, minTileY);
+        x1 = Math.min(x1, maxTileX);
+        y1 = Math.min(y1, maxTileY);
+
+        List<Point> tiles = new ArrayList<Point>();
+        for (int ty = y0; ty <= y1; ty++) {
+            for (int tx = x0; tx <= x1; tx++) {
+                if (tx >= vx0 && tx <= vx1 && ty >= vy0 && ty <= vy1) continue;
+                tiles.add(new Point(tx, ty));
+            }
+        }
+        final double cx = (vx0 + vx1) / 2d;
+        final double cy = (vy0 + vy1) / 2d;
+        Collections.sort(tiles, new Comparator<Point>() {
+            @Override
+            public int compare(Point p1, Point p2) {
+                return Double.compare(distSq(p1), distSq(p2));
+            }
+
+            private double distSq(Point p) {
+                return (p.x - cx) * (p.x - cx) + (p.y - cy) * (p.y - cy);
+            }
+        });
+        return tiles;
+    }
+
+    /**
+     * Cancels all pending (not yet running) requests and forgets the fetched tiles.
+     */
+    public void cancelAll() {
+        synchronized (pending) {
+            for (Future<?> future : pending.values()) {
+                if (future.cancel(false)) cancelledCount.incrementAndGet();
+            }
+            pending.clear();
+            fetched.clear();
+            executor.purge();
+        }
+    }
+
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    public long getScheduledCount() {
+        return scheduledCount.get();
+    }
+
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    public boolean isAnalysis() {
+        return analysis;
+    }
+
+    /**
+     * Sets the analysis flag used for the getTileData() calls (default false).
+     */
+    public void setAnalysis(boolean analysis) {
+        this.analysis = analysis;
+        synchronized (pending) {
+            fetched.clear(); // fetched with the other flag
+        }
+    }
+
+    public IOrbitImage getOrbitImage() {
+        return orbitImage;
+    }
+
+    /**
+     * Cancels pending requests and shuts down the executor. The image itself is not closed.
+     */
+    @Override
+    public void close() {
+        cancelAll();
+        executor.shutdown();
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.dal;
+
+import com.actelion.research.orbit.beans.RawDataFile;
+import com.actelion.research.orbit.utils.Logger;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resolution-aware reader for the pyramid levels of an image (level n has 1/2^n of the level 0 width and height).<br>
+ * {@link #selectLevel(double)} returns the smallest level which still has at least the requested resolution, and
+ * {@link #readRegion(Rectangle, double)} reads a level 0 region from that level.
+ * <p>
+ * If the RawDataFile has a pyramid (RawDataFile.Flag_HAS_PYRAMID) the levels are opened with IImageProvider.createOrbitImage(rdf, level).
+ * Levels which are missing (the file has no pyramid, createOrbitImage() fails or returns an image without the expected size) are
+ * synthesized lazily from the next larger level by 2x2 area averaging ({@link DownsampledOrbitImage}). Their tiles are cached
+ * (one CachingOrbitImage per level), so a level n tile is computed from cached level n-1 tiles.
+ * <p>
+ * Thread-safe. close() closes all opened levels.
+ */
+public class PyramidReader implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(PyramidReader.class);
+    public static final long DEFAULT_LEVEL_CACHE_WEIGHT = 64 * 1024 * 1024L;
+
+    private final IImageProvider imageProvider;
+    private final RawDataFile rdf;
+    private final boolean hasPyramid;
+    private final long levelCacheWeight;
+    private final List<IOrbitImage> levels = new ArrayList<IOrbitImage>();
+    private final List<Boolean> synthesized = new ArrayList<Boolean>();
+    private final int maxLevel;
+
+    public PyramidReader(IImageProvider imageProvider, RawDataFile rdf) throws Exception {
+        this(imageProvider, rdf, DEFAULT_LEVEL_CACHE_WEIGHT);
+    }
+
+    /**
+     * Opens level 0 of the image.
+     *
+     * @param levelCacheWeight maximum number of bytes of cached tiles per synthesized level
+     */
+    public PyramidReader(IImageProvider imageProvider, RawDataFile rdf, long levelCacheWeight) throws Exception {
+        this.imageProvider = imageProvider;
+        this.rdf = rdf;
+        this.hasPyramid = rdf.isFlagBit(RawDataFile.Flag_HAS_PYRAMID);
+        this.levelCacheWeight = levelCacheWeight;
+        IOrbitImage level0 = imageProvider.createOrbitImage(rdf, 0);
+        if (level0 == null) throw new IllegalArgumentException("image " + rdf.getFileName() + " cannot be opened");
+        levels.add(level0);
+        synthesized.add(false);
+        int level = 0;
+        int size = Math.max(level0.getWidth(), level0.getHeight());
+        while (size > 1) {
+            size = (size + 1) / 2;
+            level++;
+        }
+        this.maxLevel = level;
+    }
+
+    /**
+     * Returns the smallest level with at least the requested scale, e.g. level 2 (scale 0.25) for scale 0.15, because level 3
+     * has only scale 0.125. Scales &gt;=1 return level 0.
+     *
+     * @param scale output resolution relative to level 0 (0..1]
+     */
+    public int selectLevel(double scale) {
+        if (!(scale > 0)) throw new IllegalArgumentException("scale must be > 0");
+        if (scale >= 1) return 0;
+        int level = (int) Math.floor(Math.log(1d / scale) / Math.log(2d) + 1e-9);
+        return Math.min(level, maxLevel);
+    }
+
+    /**
+     * Returns the level (opened or synthesized on first use).
+     */
+    public synchronized IOrbitImage getLevel(int level) {
+        if (level < 0 || level > maxLevel) throw new IllegalArgumentException("level must be in 0.." + maxLevel);
+        if (levels.isEmpty()) throw new IllegalStateException("reader has been closed");
+        while (levels.size() <= level) {
+            int next = levels.size();
+            IOrbitImage larger = levels.get(next - 1);
+            IOrbitImage image = hasPyramid ? openLevel(next, larger) : null;
+            if (image != null) {
+                levels.add(image);
+                synthesized.add(false);
+            } else {
+                levels.add(new CachingOrbitImage(new DownsampledOrbitImage(larger, levels.get(0).getFilename() + "#level" + next), levelCacheWeight));
+                synthesized.add(true);
+            }
+        }
+        return levels.get(level);
+    }
+
+    /**
+     * Opens a stored pyramid level, returns null if the level is not available or has not half the size of the larger level.
+     */
+    private IOrbitImage openLevel(int level, IOrbitImage larger) {
+        if (synthesized.get(level - 1)) return null; // no stored level below a missing one
+        IOrbitImage image = null;
+        try {
+            image = imageProvider.createOrbitImage(rdf, level);
+        } catch (Exception e) {
+            logger.debug("pyramid level " + level + " of " + rdf.getFileName() + " not available: " + e.getMessage());
+        }
+        if (image == null) return null;
+        if (Math.abs(image.getWidth() - larger.getWidth() / 2d) > 1 || Math.abs(image.getHeight() - larger.getHeight() / 2d) > 1) {
+            logger.debug("pyramid level " + level + " of " + rdf.getFileName() + " has an unexpected size, level is computed instead");
+            try {
+                image.close();
+            } catch (IOException e) {
+                logger.debug("error closing pyramid level " + level + ": " + e.getMessage());
+            }
+            return null;
+        }
+        return image;
+    }
+
+    /**
+     * Reads the region (in level 0 coordinates) from the smallest level with at least the requested scale.
+     * The returned raster is in the coordinates of that level (e.g. the region divided by 4 for level 2), so the caller still
+     * has to scale it by scale * getDownsampleFactor(level). Returns null if the region is outside of the image.
+     */
+    public Raster readRegion(Rectangle region, double scale) {
+        return readRegion(region, selectLevel(scale), false);
+    }
+
+    /**
+     * Reads the region (in level 0 coordinates) from the given level, see readRegion(Rectangle, double).
+     */
+    public Raster readRegion(Rectangle region, int level, boolean analysis) {
+        IOrbitImage image = getLevel(level);
+        int f = 1 << level;
+        int x0 = Math.floorDiv(region.x, f);
+        int y0 = Math.floorDiv(region.y, f);
+        int x1 = -Math.floorDiv(-(region.x + region.width), f);
+        int y1 = -Math.floorDiv(-(region.y + region.height), f);
+        Rectangle rect = new Rectangle(x0, y0, x1 - x0, y1 - y0).intersection(new Rectangle(image.getMinX(), image.getMinY(), image.getWidth(), image.getHeight()));
+        if (rect.isEmpty()) return null;
+        return DownsampledOrbitImage.readRegion(image, rect, analysis);
+    }
+
+    /**
+     * Returns the factor between level 0 and the level (2^level).
+     */
+    public static int getDownsampleFactor(int level) {
+        return 1 << level;
+    }
+
+    /**
+     * Returns the highest level (the level with a width and height of 1 pixel).
+     */
+    public int getMaxLevel() {
+        return maxLevel;
+    }
+
+    /**
+     * Returns true if the level has been computed from the next larger level instead of being read from the file
+     * (only known after the level has been opened).
+     */
+    public synchronized boolean isSynthesized(int level) {
+        getLevel(level);
+        return synthesized.get(level);
+    }
+
+    public boolean hasPyramid() {
+        return hasPyramid;
+    }
+
+    public RawDataFile getRawDataFile() {
+        return rdf;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException error = null;
+        for (int i = levels.size() - 1; i >= 0; i--) {
+            try {
+                levels.get(i).close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+        }
+        levels.clear();
+        synthesized.clear();
+        if (error != null) throw error;
+    }
+
+}
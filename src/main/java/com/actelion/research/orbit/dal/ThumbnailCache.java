@@ -0,0 +1,317 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.dal;
+
+import com.actelion.research.orbit.beans.RawDataFile;
+import com.actelion.research.orbit.utils.ExpiringCache;
+import com.actelion.research.orbit.utils.Logger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.swing.SwingUtilities;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Two-tier cache for thumbnail, overview and label images of an image provider.<br>
+ * Images are kept in a small in-heap LRU and persisted in a local disk cache (JPEG, or PNG for images with alpha channel),
+ * keyed by rawDataFileId and md5, so each image is fetched from the image provider only once, also across sessions.
+ * Files without md5 are cached in heap only (a changed file could not be detected).
+ * <p>
+ * {@link #getAsync(RawDataFile, Kind)} loads on the bounded executor of an {@link AsyncImageProviderAdapter},
+ * concurrent requests for the same image share one load. A list cell renderer typically calls
+ * {@link #getIfPresent(RawDataFile, Kind)} and, on a miss, {@link #request(RawDataFile, Kind, Consumer)} with a callback
+ * which repaints the list (the callback runs on the event dispatch thread).
+ */
+public class ThumbnailCache implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(ThumbnailCache.class);
+    public static final int DEFAULT_MAX_HEAP_ENTRIES = 500;
+    public static final float JPEG_QUALITY = 0.9f;
+
+    public enum Kind {
+        THUMBNAIL, OVERVIEW, LABEL
+    }
+
+    private final AsyncImageProviderAdapter asyncProvider;
+    private final File cacheDir;
+    private final ExpiringCache<Key, BufferedImage> heapCache;
+    private final ConcurrentHashMap<Key, CompletableFuture<BufferedImage>> loading = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a cache in user.home/.orbit/thumbnails.
+     */
+    public ThumbnailCache(IImageProvider imageProvider) {
+        this(imageProvider, getDefaultCacheDir(), DEFAULT_MAX_HEAP_ENTRIES);
+    }
+
+    /**
+     * @param cacheDir       disk cache directory (created if needed), null for heap only
+     * @param maxHeapEntries maximum number of images kept in heap
+     */
+    public ThumbnailCache(IImageProvider imageProvider, File cacheDir, int maxHeapEntries) {
+        this.asyncProvider = new AsyncImageProviderAdapter(imageProvider);
+        this.heapCache = new ExpiringCache<>(maxHeapEntries, 0);
+        if (cacheDir != null && !cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            logger.error("cannot create thumbnail cache directory " + cacheDir + ", using heap cache only");
+            cacheDir = null;
+        }
+        this.cacheDir = cacheDir;
+    }
+
+    public static File getDefaultCacheDir() {
+        return new File(System.getProperty("user.home"), ".orbit" + File.separator + "thumbnails");
+    }
+
+    /**
+     * Returns the image if it is in the heap cache, null otherwise. Does not block.
+     */
+    public BufferedImage getIfPresent(RawDataFile rdf, Kind kind) {
+        return heapCache.get(new Key(rdf, kind));
+    }
+
+    /**
+     * Returns the image, loads it from disk or the image provider if needed (blocking).
+     */
+    public BufferedImage get(RawDataFile rdf, Kind kind) throws Exception {
+        BufferedImage img = getIfPresent(rdf, kind);
+        if (img != null) return img;
+        return load(new Key(rdf, kind), rdf);
+    }
+
+    public BufferedImage getThumbnail(RawDataFile rdf) throws Exception {
+        return get(rdf, Kind.THUMBNAIL);
+    }
+
+    /**
+     * Returns the image asynchronously. The future completes with null if the provider has no such image.
+     */
+    public CompletableFuture<BufferedImage> getAsync(final RawDataFile rdf, Kind kind) {
+        final Key key = new Key(rdf, kind);
+        BufferedImage img = heapCache.get(key);
+        if (img != null) return CompletableFuture.completedFuture(img);
+        CompletableFuture<BufferedImage> future = loading.get(key);
+        if (future != null) return future;
+        CompletableFuture<BufferedImage> newFuture = new CompletableFuture<>();
+        future = loading.putIfAbsent(key, newFuture);
+        if (future != null) return future;
+        asyncProvider.submit(() -> load(key, rdf)).whenComplete((image, t) -> {
+            loading.remove(key);
+            if (t != null) newFuture.completeExceptionally(t);
+            else newFuture.complete(image);
+        });
+        return newFuture;
+    }
+
+    public CompletableFuture<BufferedImage> getThumbnailAsync(RawDataFile rdf) {
+        return getAsync(rdf, Kind.THUMBNAIL);
+    }
+
+    /**
+     * Loads the image asynchronously and calls onLoaded on the event dispatch thread when the image is available
+     * (not called if the image does not exist or cannot be loaded).
+     */
+    public void request(final RawDataFile rdf, Kind kind, final Consumer<BufferedImage> onLoaded) {
+        getAsync(rdf, kind).whenComplete((image, t) -> {
+            if (t != null) {
+                logger.error("cannot load image of " + rdf.getFileName() + ": " + t.getMessage());
+            } else if (image != null) {
+                SwingUtilities.invokeLater(() -> onLoaded.accept(image));
+            }
+        });
+    }
+
+    private BufferedImage load(Key key, RawDataFile rdf) throws Exception {
+        BufferedImage img = readFromDisk(key);
+        if (img == null) {
+            img = fetch(rdf, key.kind);
+            if (img != null) writeToDisk(key, img);
+        }
+        heapCache.put(key, img);
+        return img;
+    }
+
+    private BufferedImage fetch(RawDataFile rdf, Kind kind) throws Exception {
+        IImageProvider imageProvider = asyncProvider.getImageProvider();
+        switch (kind) {
+            case OVERVIEW:
+                return imageProvider.getOverviewImage(rdf);
+            case LABEL:
+                return imageProvider.getLabelImage(rdf);
+            default:
+                return imageProvider.getThumbnail(rdf);
+        }
+    }
+
+    private BufferedImage readFromDisk(Key key) {
+        if (cacheDir == null || key.md5 == null) return null;
+        for (String ext : new String[]{"jpg", "png"}) {
+            File f = new File(cacheDir, key.getFileName(ext));
+            if (!f.isFile()) continue;
+            try {
+                BufferedImage img = ImageIO.read(f);
+                if (img != null) {
+                    f.setLastModified(System.currentTimeMillis()); // for trimDiskCache()
+                    return img;
+                }
+            } catch (IOException e) {
+                logger.error("cannot read cached image " + f + ": " + e.getMessage());
+            }
+            f.delete();
+        }
+        return null;
+    }
+
+    private void writeToDisk(Key key, BufferedImage img) {
+        if (cacheDir == null || key.md5 == null) return;
+        boolean png = img.getColorModel().hasAlpha();
+        File target = new File(cacheDir, key.getFileName(png ? "png" : "jpg"));
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("thn", ".tmp", cacheDir);
+            if (png) {
+                ImageIO.write(img, "png", tmp);
+            } else {
+                writeJpeg(img, tmp);
+            }
+            try {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.error("cannot write cached image " + target + ": " + e.getMessage());
+            if (tmp != null) tmp.delete();
+        }
+    }
+
+    private static void writeJpeg(BufferedImage img, File file) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) throw new IOException("no jpeg writer available");
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Deletes the least recently used files of the disk cache until its size is at most maxBytes.
+     *
+     * @return number of deleted files
+     */
+    public int trimDiskCache(long maxBytes) {
+        if (cacheDir == null) return 0;
+        File[] files = cacheDir.listFiles();
+        if (files == null) return 0;
+        List<File> fileList = new ArrayList<>(Arrays.asList(files));
+        fileList.sort(Comparator.comparingLong(File::lastModified));
+        long size = 0;
+        for (File f : fileList) {
+            size += f.length();
+        }
+        int deleted = 0;
+        for (File f : fileList) {
+            if (size <= maxBytes) break;
+            long len = f.length();
+            if (f.delete()) {
+                size -= len;
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Clears the heap cache (the disk cache is kept).
+     */
+    public void clearHeapCache() {
+        heapCache.clear();
+    }
+
+    public ExpiringCache<?, ?> getHeapCache() {
+        return heapCache;
+    }
+
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    @Override
+    public void close() {
+        asyncProvider.close();
+        heapCache.clear();
+    }
+
+
+    private static final class Key {
+        final int rdfId;
+        final String md5;
+        final Kind kind;
+
+        Key(RawDataFile rdf, Kind kind) {
+            this.rdfId = rdf.getRawDataFileId();
+            this.md5 = rdf.getMd5() != null && rdf.getMd5().length() > 0 ? rdf.getMd5() : null;
+            this.kind = kind;
+        }
+
+        String getFileName(String ext) {
+            return rdfId + "_" + md5 + "_" + kind.name().toLowerCase() + "." + ext;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return rdfId == key.rdfId && kind == key.kind && (md5 == null ? key.md5 == null : md5.equals(key.md5));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = rdfId;
+            result = 31 * result + (md5 != null ? md5.hashCode() : 0);
+            result = 31 * result + kind.hashCode();
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,352 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.dal;
+
+import com.actelion.research.orbit.utils.Logger;
+
+import java.awt.Point;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of tile buffers for decoded rasters, to avoid allocating new arrays for every getTileData() call.<br>
+ * {@link #acquire(int, int, int, int, Point)} returns a {@link PooledTile} with a pixel interleaved WritableRaster over a recycled
+ * array (or a recycled direct ByteBuffer, see {@link DirectDataBuffer}). After the raster is not used anymore the tile must be
+ * released explicitly ({@link PooledTile#release()} or {@link #release(Raster)}), the memory is then reused for the next tile
+ * with the same data type and size. Rasters must not be accessed after release. The pool only keeps weak references to acquired
+ * tiles, so tiles which are never released are garbage collected together with their raster (and their direct memory).
+ * <p>
+ * Free buffers are kept up to maxPooledBytes, additional released buffers are dropped. The contents of acquired buffers are undefined.
+ * The default pool is configured with the system properties orbit.tilepool.maxBytes (default 256 MB) and orbit.tilepool.direct.
+ * Thread-safe.
+ */
+public class TileBufferPool {
+
+    private static final Logger logger = Logger.getLogger(TileBufferPool.class);
+    public static final long DEFAULT_MAX_POOLED_BYTES = 256 * 1024 * 1024L;
+
+    private static TileBufferPool defaultPool = null;
+
+    private final long maxPooledBytes;
+    private final boolean direct;
+    private final Map<Long, ConcurrentLinkedDeque<Object>> free = new ConcurrentHashMap<Long, ConcurrentLinkedDeque<Object>>();
+    private final Map<DataBuffer, Lease> outstanding = Collections.synchronizedMap(new WeakHashMap<DataBuffer, Lease>()); // the lease must not reference the DataBuffer
+    private final AtomicLong pooledBytes = new AtomicLong(0);
+    private final AtomicLong allocationCount = new AtomicLong(0);
+    private final AtomicLong reuseCount = new AtomicLong(0);
+    private final AtomicLong dropCount = new AtomicLong(0);
+
+    /**
+     * @param maxPooledBytes maximum number of bytes kept in free buffers
+     * @param direct         if true the buffers are direct ByteBuffers (off-heap), otherwise Java arrays
+     */
+    public TileBufferPool(long maxPooledBytes, boolean direct) {
+        if (maxPooledBytes < 0) throw new IllegalArgumentException("maxPooledBytes must be >= 0");
+        this.maxPooledBytes = maxPooledBytes;
+        this.direct = direct;
+    }
+
+    /**
+     * Returns the shared pool (created on first use).
+     */
+    public static synchronized TileBufferPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new TileBufferPool(Long.getLong("orbit.tilepool.maxBytes", DEFAULT_MAX_POOLED_BYTES), Boolean.getBoolean("orbit.tilepool.direct"));
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Acquires a pixel interleaved raster.
+     *
+     * @param dataType DataBuffer.TYPE_BYTE, TYPE_USHORT, TYPE_SHORT, TYPE_INT or TYPE_FLOAT
+     * @param location upper left corner of the raster, null for (0,0)
+     */
+    public PooledTile acquire(int dataType, int width, int height, int numBands, Point location) {
+        if (width <= 0 || height <= 0 || numBands <= 0) throw new IllegalArgumentException("width, height and numBands must be > 0");
+        long size = (long) width * height * numBands;
+        if (size > Integer.MAX_VALUE / DirectDataBuffer.getBytesPerElement(dataType)) throw new IllegalArgumentException("tile too large: " + width + "x" + height + "x" + numBands);
+        int n = (int) size;
+        long key = key(dataType, n);
+        Object storage = null;
+        ConcurrentLinkedDeque<Object> queue = free.get(key);
+        if (queue != null) storage = queue.pollFirst();
+        if (storage != null) {
+            pooledBytes.addAndGet(-bytes(dataType, n));
+            reuseCount.incrementAndGet();
+        } else {
+            storage = allocate(dataType, n);
+            allocationCount.incrementAndGet();
+        }
+        DataBuffer dataBuffer = createDataBuffer(dataType, n, storage);
+        int[] bandOffsets = new int[numBands];
+        for (int b = 0; b < numBands; b++) bandOffsets[b] = b;
+        PixelInterleavedSampleModel sm = new PixelInterleavedSampleModel(dataType, width, height, numBands, width * numBands, bandOffsets);
+        Point origin = location != null ? location : new Point(0, 0);
+        // Raster.createWritableRaster() rejects custom DataBuffers for interleaved sample models on Java 8
+        WritableRaster raster = dataBuffer instanceof DirectDataBuffer ? new PooledRaster(sm, dataBuffer, origin) : Raster.createWritableRaster(sm, dataBuffer, origin);
+        Lease lease = new Lease(dataType, n);
+        outstanding.put(dataBuffer, lease);
+        return new PooledTile(this, raster, lease);
+    }
+
+    /**
+     * Acquires a raster with the data type, size, number of bands and location of the given raster (the samples are not copied).
+     */
+    public PooledTile acquireCompatible(Raster raster) {
+        return acquire(raster.getDataBuffer().getDataType(), raster.getWidth(), raster.getHeight(), raster.getNumBands(), new Point(raster.getMinX(), raster.getMinY()));
+    }
+
+    /**
+     * Releases the tile the raster (or a child raster of it) belongs to.
+     *
+     * @return false if the raster has not been acquired from this pool or has already been released
+     */
+    public boolean release(Raster raster) {
+        if (raster == null) return false;
+        Lease lease = outstanding.get(raster.getDataBuffer());
+        return lease != null && recycle(raster.getDataBuffer(), lease);
+    }
+
+    /**
+     * Returns true if the raster has been acquired from this pool and not released yet.
+     */
+    public boolean isPooled(Raster raster) {
+        return raster != null && outstanding.containsKey(raster.getDataBuffer());
+    }
+
+    /**
+     * Returns the storage of the lease to the free buffers.
+     *
+     * @return false if the lease has already been released
+     */
+    private boolean recycle(DataBuffer dataBuffer, Lease lease) {
+        if (!lease.released.compareAndSet(false, true)) {
+            logger.debug("tile buffer released twice");
+            return false;
+        }
+        outstanding.remove(dataBuffer);
+        long b = bytes(lease.dataType, lease.size);
+        if (pooledBytes.addAndGet(b) > maxPooledBytes) {
+            pooledBytes.addAndGet(-b);
+            dropCount.incrementAndGet();
+            return true;
+        }
+        ConcurrentLinkedDeque<Object> queue = free.computeIfAbsent(key(lease.dataType, lease.size), k -> new ConcurrentLinkedDeque<Object>());
+        queue.offerFirst(getStorage(dataBuffer)); // LIFO: recently used buffers are more likely in the CPU cache
+        return true;
+    }
+
+    /**
+     * Drops all free buffers.
+     */
+    public void clear() {
+        for (ConcurrentLinkedDeque<Object> queue : free.values()) {
+            Object storage;
+            while ((storage = queue.pollFirst()) != null) {
+                pooledBytes.addAndGet(-bytes(storage));
+            }
+        }
+    }
+
+    private Object allocate(int dataType, int n) {
+        if (direct) return ByteBuffer.allocateDirect(n * DirectDataBuffer.getBytesPerElement(dataType));
+        switch (dataType) {
+            case DataBuffer.TYPE_BYTE:
+                return new byte[n];
+            case DataBuffer.TYPE_USHORT:
+            case DataBuffer.TYPE_SHORT:
+                return new short[n];
+            case DataBuffer.TYPE_INT:
+                return new int[n];
+            case DataBuffer.TYPE_FLOAT:
+                return new float[n];
+            default:
+                throw new IllegalArgumentException("unsupported data type " + dataType);
+        }
+    }
+
+    private static DataBuffer createDataBuffer(int dataType, int n, Object storage) {
+        if (storage instanceof ByteBuffer) return new DirectDataBuffer(dataType, (ByteBuffer) storage, n);
+        switch (dataType) {
+            case DataBuffer.TYPE_BYTE:
+                return new DataBufferByte((byte[]) storage, n);
+            case DataBuffer.TYPE_USHORT:
+                return new DataBufferUShort((short[]) storage, n);
+            case DataBuffer.TYPE_SHORT:
+                return new DataBufferShort((short[]) storage, n);
+            case DataBuffer.TYPE_INT:
+                return new DataBufferInt((int[]) storage, n);
+            default:
+                return new DataBufferFloat((float[]) storage, n);
+        }
+    }
+
+    private static Object getStorage(DataBuffer dataBuffer) {
+        if (dataBuffer instanceof DirectDataBuffer) return ((DirectDataBuffer) dataBuffer).getBuffer();
+        if (dataBuffer instanceof DataBufferByte) return ((DataBufferByte) dataBuffer).getData();
+        if (dataBuffer instanceof DataBufferUShort) return ((DataBufferUShort) dataBuffer).getData();
+        if (dataBuffer instanceof DataBufferShort) return ((DataBufferShort) dataBuffer).getData();
+        if (dataBuffer instanceof DataBufferInt) return ((DataBufferInt) dataBuffer).getData();
+        return ((DataBufferFloat) dataBuffer).getData();
+    }
+
+    private static long key(int dataType, int n) {
+        return ((long) dataType << 32) | n;
+    }
+
+    private static long bytes(int dataType, int n) {
+        return (long) n * DirectDataBuffer.getBytesPerElement(dataType);
+    }
+
+    private static long bytes(Object storage) {
+        if (storage instanceof ByteBuffer) return ((ByteBuffer) storage).capacity();
+        if (storage instanceof byte[]) return ((byte[]) storage).length;
+        if (storage instanceof short[]) return ((short[]) storage).length * 2L;
+        if (storage instanceof int[]) return ((int[]) storage).length * 4L;
+        return ((float[]) storage).length * 4L;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    /**
+     * Returns the number of bytes in free buffers.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Returns the number of acquired tiles which have neither been released nor garbage collected yet.
+     */
+    public int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    public long getAllocationCount() {
+        return allocationCount.get();
+    }
+
+    public long getReuseCount() {
+        return reuseCount.get();
+    }
+
+    /**
+     * Returns the number of released buffers which were not pooled because the pool was full.
+     */
+    public long getDropCount() {
+        return dropCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TileBufferPool [direct=" + direct + ", pooledBytes=" + getPooledBytes() + ", outstanding=" + getOutstandingCount()
+                + ", allocations=" + getAllocationCount() + ", reuses=" + getReuseCount() + ", drops=" + getDropCount() + "]";
+    }
+
+
+    /**
+     * Recycling state of an acquired buffer. Deliberately references neither the DataBuffer nor its memory, so an unreleased
+     * buffer is freed in the same garbage collection which clears its weak outstanding entry.
+     */
+    private static final class Lease {
+        private final int dataType;
+        private final int size;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Lease(int dataType, int size) {
+            this.dataType = dataType;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Generic raster over a DirectDataBuffer.
+     */
+    private static final class PooledRaster extends WritableRaster {
+        private PooledRaster(SampleModel sampleModel, DataBuffer dataBuffer, Point origin) {
+            super(sampleModel, dataBuffer, origin);
+        }
+    }
+
+    /**
+     * A raster acquired from a TileBufferPool. Release it when the raster is not used anymore (release is idempotent).
+     */
+    public static final class PooledTile implements AutoCloseable {
+        private final TileBufferPool pool;
+        private final WritableRaster raster;
+        private final Lease lease;
+
+        private PooledTile(TileBufferPool pool, WritableRaster raster, Lease lease) {
+            this.pool = pool;
+            this.raster = raster;
+            this.lease = lease;
+        }
+
+        /**
+         * Returns the raster. It must not be used after release().
+         */
+        public WritableRaster getRaster() {
+            if (lease.released.get()) throw new IllegalStateException("tile has already been released");
+            return raster;
+        }
+
+        /**
+         * Returns the memory to the pool.
+         *
+         * @return false if the tile has already been released
+         */
+        public boolean release() {
+            return pool.recycle(raster.getDataBuffer(), lease);
+        }
+
+        public boolean isReleased() {
+            return lease.released.get();
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+
+}
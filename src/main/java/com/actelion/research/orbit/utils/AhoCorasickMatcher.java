@@ -0,0 +1,166 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton which finds all occurrences of a fixed set of patterns in a text in one pass.<br>
+ * Transitions are stored as sorted char arrays per state (binary search), the outputs of the suffix states are merged into each
+ * state at build time.
+ * <p>
+ * Immutable and thread-safe after construction.
+ */
+final class AhoCorasickMatcher {
+
+    private char[][] keys = new char[16][];
+    private int[][] targets = new int[16][];
+    private int[] fail;
+    private int[][] outputs = new int[16][];
+    private int numStates = 1;
+    private final int numPatterns;
+
+    /**
+     * @param patterns the patterns, the result of {@link #match(CharSequence)} is indexed like this list. Empty patterns never match.
+     */
+    AhoCorasickMatcher(List<String> patterns) {
+        this.numPatterns = patterns.size();
+        keys[0] = new char[0];
+        targets[0] = new int[0];
+        outputs[0] = new int[0];
+        for (int p = 0; p < patterns.size(); p++) {
+            String pattern = patterns.get(p);
+            if (pattern.isEmpty()) continue;
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                int next = next(state, pattern.charAt(i));
+                if (next < 0) next = addTransition(state, pattern.charAt(i));
+                state = next;
+            }
+            outputs[state] = append(outputs[state], p);
+        }
+        buildFailureLinks();
+    }
+
+    /**
+     * Returns for each pattern whether it occurs in the text.
+     */
+    boolean[] match(CharSequence text) {
+        boolean[] found = new boolean[numPatterns];
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int next;
+            while ((next = next(state, c)) < 0 && state != 0) {
+                state = fail[state];
+            }
+            state = next < 0 ? 0 : next;
+            for (int p : outputs[state]) {
+                found[p] = true;
+            }
+        }
+        return found;
+    }
+
+    int getNumPatterns() {
+        return numPatterns;
+    }
+
+    private int next(int state, char c) {
+        int i = Arrays.binarySearch(keys[state], c);
+        return i >= 0 ? targets[state][i] : -1;
+    }
+
+    private int addTransition(int state, char c) {
+        if (numStates == keys.length) {
+            keys = Arrays.copyOf(keys, numStates * 2);
+            targets = Arrays.copyOf(targets, numStates * 2);
+            outputs = Arrays.copyOf(outputs, numStates * 2);
+        }
+        int newState = numStates++;
+        keys[newState] = new char[0];
+        targets[newState] = new int[0];
+        outputs[newState] = new int[0];
+        int pos = -(Arrays.binarySearch(keys[state], c) + 1);
+        char[] k = keys[state];
+        int[] t = targets[state];
+        char[] newKeys = new char[k.length + 1];
+        int[] newTargets = new int[t.length + 1];
+        System.arraycopy(k, 0, newKeys, 0, pos);
+        System.arraycopy(t, 0, newTargets, 0, pos);
+        newKeys[pos] = c;
+        newTargets[pos] = newState;
+        System.arraycopy(k, pos, newKeys, pos + 1, k.length - pos);
+        System.arraycopy(t, pos, newTargets, pos + 1, t.length - pos);
+        keys[state] = newKeys;
+        targets[state] = newTargets;
+        return newState;
+    }
+
+    /**
+     * Breadth-first: the failure state of a child is the longest proper suffix state, its outputs are added to the child.
+     */
+    private void buildFailureLinks() {
+        fail = new int[numStates];
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        for (int child : targets[0]) {
+            fail[child] = 0;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = 0; i < keys[state].length; i++) {
+                char c = keys[state][i];
+                int child = targets[state][i];
+                int f = fail[state];
+                int next;
+                while ((next = next(f, c)) < 0 && f != 0) {
+                    f = fail[f];
+                }
+                fail[child] = next < 0 || next == child ? 0 : next;
+                if (outputs[fail[child]].length > 0) {
+                    outputs[child] = merge(outputs[child], outputs[fail[child]]);
+                }
+                queue.add(child);
+            }
+        }
+    }
+
+    private static int[] append(int[] a, int v) {
+        int[] r = Arrays.copyOf(a, a.length + 1);
+        r[a.length] = v;
+        return r;
+    }
+
+    private static int[] merge(int[] a, int[] b) {
+        List<Integer> list = new ArrayList<Integer>(a.length + b.length);
+        for (int v : a) list.add(v);
+        for (int v : b) {
+            if (!list.contains(v)) list.add(v);
+        }
+        int[] r = new int[list.size()];
+        for (int i = 0; i < r.length; i++) r[i] = list.get(i);
+        return r;
+    }
+
+}
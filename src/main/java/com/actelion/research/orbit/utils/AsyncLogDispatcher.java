@@ -0,0 +1,188 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background dispatcher for the asynchronous mode of {@link Logger}.<br>
+ * Log calls publish into a bounded lock-free ring buffer of preallocated events (multi-producer, single-consumer),
+ * one daemon thread formats the events and passes them to the log listeners.
+ * If the buffer is full the caller waits until the dispatcher has made space, so no events are lost.
+ * Events published after the dispatcher has stopped are dispatched inline by the caller.
+ */
+final class AsyncLogDispatcher implements Runnable {
+
+    static final int DEFAULT_CAPACITY = 8192;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long CLOSED = Long.MIN_VALUE; // tail value after the dispatcher thread has stopped
+
+    private final int mask;
+    private final LogEvent[] events;
+    private final AtomicLongArray sequences; // per slot: == position -> free for producer, == position+1 -> published
+    private final AtomicLong tail = new AtomicLong(0); // next position to claim (producers) or CLOSED
+    private volatile long head = 0;                     // next position to dispatch (consumer only)
+    private volatile boolean running = true;
+    private volatile boolean idle = false;
+    private final Thread thread;
+
+    static final class LogEvent {
+        int level;
+        Class<?> source;
+        String message;
+        long time;
+        int lineNumber;
+    }
+
+    AsyncLogDispatcher(int capacity) {
+        int cap = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1; // next power of two
+        this.mask = cap - 1;
+        this.events = new LogEvent[cap];
+        this.sequences = new AtomicLongArray(cap);
+        for (int i = 0; i < cap; i++) {
+            events[i] = new LogEvent();
+            sequences.set(i, i);
+        }
+        thread = new Thread(this, "OrbitLogDispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Publishes an event, waits if the buffer is full.
+     */
+    void publish(int level, Class<?> source, String message, long time, int lineNumber) {
+        long pos;
+        int idx;
+        while (true) {
+            pos = tail.get();
+            if (pos == CLOSED) {
+                // the dispatcher has stopped and will not see this event
+                Logger.dispatch(level, source, message, time, lineNumber);
+                return;
+            }
+            idx = (int) (pos & mask);
+            long diff = sequences.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) break;
+            } else if (diff < 0) {
+                // full: wait for the dispatcher
+                if (Thread.currentThread() == thread || !thread.isAlive()) {
+                    // a listener logs itself or the dispatcher has been stopped: dispatch inline to avoid a deadlock
+                    Logger.dispatch(level, source, message, time, lineNumber);
+                    return;
+                }
+                wakeUp();
+                LockSupport.parkNanos(1000L);
+            }
+        }
+        LogEvent e = events[idx];
+        e.level = level;
+        e.source = source;
+        e.message = message;
+        e.time = time;
+        e.lineNumber = lineNumber;
+        sequences.lazySet(idx, pos + 1);
+        if (idle) wakeUp();
+    }
+
+    private void wakeUp() {
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            if (!dispatchAvailable()) {
+                // closing tail via CAS ensures that no producer claims a slot the dispatcher will never see
+                if (!running && tail.compareAndSet(head, CLOSED)) return;
+                idle = true;
+                if (!dispatchAvailable()) LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                idle = false;
+            }
+        }
+    }
+
+    /**
+     * Dispatches all published events.
+     *
+     * @return true if at least one event has been dispatched
+     */
+    private boolean dispatchAvailable() {
+        boolean dispatched = false;
+        long pos = head;
+        while (true) {
+            int idx = (int) (pos & mask);
+            if (sequences.get(idx) != pos + 1) break;
+            LogEvent e = events[idx];
+            try {
+                Logger.dispatch(e.level, e.source, e.message, e.time, e.lineNumber);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+            e.source = null;
+            e.message = null;
+            sequences.lazySet(idx, pos + mask + 1);
+            pos++;
+            head = pos;
+            dispatched = true;
+        }
+        return dispatched;
+    }
+
+    /**
+     * Waits until all events published before this call have been dispatched.
+     *
+     * @return false if the timeout elapsed before
+     */
+    boolean flush(long timeoutMillis) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (head < target) {
+            if (Thread.currentThread() == thread || !thread.isAlive()) return false;
+            if (System.nanoTime() - deadline > 0) return false;
+            wakeUp();
+            LockSupport.parkNanos(100000L);
+        }
+        return true;
+    }
+
+    /**
+     * Dispatches the pending events and stops the dispatcher thread.
+     */
+    void shutdown(long timeoutMillis) {
+        running = false;
+        wakeUp();
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getPendingCount() {
+        long t = tail.get();
+        return t == CLOSED ? 0 : t - head;
+    }
+
+}
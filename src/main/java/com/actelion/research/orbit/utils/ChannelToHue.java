@@ -19,12 +19,26 @@
 
 package com.actelion.research.orbit.utils;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Maps channel names (e.g. 'DAPI', 'Alexa Fluor 488') to hues.<br>
+ * Exact names in userHueMap and hueMap are matched first, then the names are searched for known dyes, Alexa wavelengths,
+ * colors and the hueMap and userHueMap names (longest name first). All names are matched in one pass by an Aho-Corasick
+ * automaton, and the results are memoized. The automaton and the memo cache are rebuilt on the next lookup
+ * after lastUpdate has been changed, so lastUpdate must be incremented after modifying hueMap or userHueMap.
+ */
 public class ChannelToHue {
 
+    private static final Logger logger = Logger.getLogger(ChannelToHue.class);
+    private static final int MAX_MEMO_SIZE = 1024;
+
     public static final AtomicLong lastUpdate = new AtomicLong(0);
 
     private static final float HueAlexa350 = 204f / 360f;
@@ -112,57 +126,166 @@ public class ChannelToHue {
         }
     }
 
+    private static volatile HueMatcher matcher = null;
+
     public static float getHue(String channel) {
         if (channel==null) return HueDAPI;
-        String channelName = channel.trim().toLowerCase();
-        if (userHueMap.containsKey(channelName)) return userHueMap.get(channelName);
-        if (hueMap.containsKey(channelName)) return hueMap.get(channelName);
-        if (channelName.contains("dapi")) return HueDAPI;
-        if (channelName.contains("fitc")) return HueFITC;
-        if (channelName.contains("tritc")) return HueTRITC;
-        if (channelName.contains("cy5")) return HueCy5;
-        if (channelName.contains("cy3")) return HueCy3;
-        if (channelName.contains("gfp")) return HueEGFP;
-
-        if (channelName.contains("alexa") || channelName.contains("af")) {
-            if (channelName.contains("350")) return HueAlexa350;
-            if (channelName.contains("388")) return HueAlexa388;
-            if (channelName.contains("405")) return HueAlexa405;
-            if (channelName.contains("430")) return HueAlexa430;
-            if (channelName.contains("488")) return HueAlexa488;
-            if (channelName.contains("500")) return HueAlexa500;
-            if (channelName.contains("514")) return HueAlexa514;
-            if (channelName.contains("532")) return HueAlexa532;
-            if (channelName.contains("546")) return HueAlexa546;
-            if (channelName.contains("550")) return HueAlexa550;
-            if (channelName.contains("555")) return HueAlexa555;
-            if (channelName.contains("568")) return HueAlexa568;
-            if (channelName.contains("594")) return HueAlexa594;
-            if (channelName.contains("610")) return HueAlexa610;
-            if (channelName.contains("633")) return HueAlexa633;
-            if (channelName.contains("635")) return HueAlexa635;
-            if (channelName.contains("647")) return HueAlexa647;
-            if (channelName.contains("650")) return HueAlexa650;
-            if (channelName.contains("660")) return HueAlexa660;
-            if (channelName.contains("680")) return HueAlexa680;
-            if (channelName.contains("700")) return HueAlexa700;
-            if (channelName.contains("750")) return HueAlexa750;
-            if (channelName.contains("790")) return HueAlexa790;
+        return getMatcher().getHue(channel);
+    }
+
+    private static HueMatcher getMatcher() {
+        long stamp = lastUpdate.get();
+        HueMatcher m = matcher;
+        if (m == null || m.stamp != stamp) {
+            synchronized (ChannelToHue.class) {
+                m = matcher;
+                if (m == null || m.stamp != stamp) {
+                    m = new HueMatcher(stamp);
+                    matcher = m;
+                }
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Ordered substring rule: matches if the pattern occurs and (if condition patterns are given) one of the condition patterns occurs.
+     */
+    private static final class HueRule {
+        final int pattern;
+        final int[] conditions;
+        final float hue;
+
+        HueRule(int pattern, int[] conditions, float hue) {
+            this.pattern = pattern;
+            this.conditions = conditions;
+            this.hue = hue;
+        }
+    }
+
+    /**
+     * Snapshot of hueMap and userHueMap compiled into an automaton and a rule list, with a memo cache of resolved names.
+     */
+    private static final class HueMatcher {
+        final long stamp;
+        private final Map<String, Float> userExact = new HashMap<>();
+        private final Map<String, Float> builtinExact = new HashMap<>();
+        private final Map<String, Integer> patternIds = new HashMap<>();
+        private final List<String> patterns = new ArrayList<>();
+        private final List<HueRule> rules = new ArrayList<>();
+        private final AhoCorasickMatcher automaton;
+        private final Map<String, Float> memo = new ConcurrentHashMap<>();
+
+        HueMatcher(long stamp) {
+            this.stamp = stamp;
+            for (Map.Entry<String, Float> e : hueMap.entrySet()) {
+                builtinExact.put(e.getKey().trim().toLowerCase(), e.getValue());
+            }
+            for (Map.Entry<String, Float> e : userHueMap.entrySet()) {
+                userExact.put(e.getKey().trim().toLowerCase(), e.getValue());
+            }
+
+            addRule("dapi", HueDAPI);
+            addRule("fitc", HueFITC);
+            addRule("tritc", HueTRITC);
+            addRule("cy5", HueCy5);
+            addRule("cy3", HueCy3);
+            addRule("gfp", HueEGFP);
+
+            int[] alexa = new int[] {patternId("alexa"), patternId("af")};
+            addRule("350", alexa, HueAlexa350);
+            addRule("388", alexa, HueAlexa388);
+            addRule("405", alexa, HueAlexa405);
+            addRule("430", alexa, HueAlexa430);
+            addRule("488", alexa, HueAlexa488);
+            addRule("500", alexa, HueAlexa500);
+            addRule("514", alexa, HueAlexa514);
+            addRule("532", alexa, HueAlexa532);
+            addRule("546", alexa, HueAlexa546);
+            addRule("550", alexa, HueAlexa550);
+            addRule("555", alexa, HueAlexa555);
+            addRule("568", alexa, HueAlexa568);
+            addRule("594", alexa, HueAlexa594);
+            addRule("610", alexa, HueAlexa610);
+            addRule("633", alexa, HueAlexa633);
+            addRule("635", alexa, HueAlexa635);
+            addRule("647", alexa, HueAlexa647);
+            addRule("650", alexa, HueAlexa650);
+            addRule("660", alexa, HueAlexa660);
+            addRule("680", alexa, HueAlexa680);
+            addRule("700", alexa, HueAlexa700);
+            addRule("750", alexa, HueAlexa750);
+            addRule("790", alexa, HueAlexa790);
+
+            addRule("violet", 264f / 360f);
+            addRule("red", 0f / 360f);
+            addRule("green", 102f / 360f);
+            addRule("blue", 231f / 360f);
+
+            addNameRules(builtinExact);
+            addNameRules(userExact);
+
+            automaton = new AhoCorasickMatcher(patterns);
+        }
+
+        float getHue(String channel) {
+            Float hue = memo.get(channel);
+            if (hue == null) {
+                hue = resolve(channel);
+                if (memo.size() >= MAX_MEMO_SIZE) memo.clear();
+                memo.put(channel, hue);
+            }
+            return hue;
         }
 
+        private float resolve(String channel) {
+            String channelName = channel.trim().toLowerCase();
+            Float hue = userExact.get(channelName);
+            if (hue != null) return hue;
+            hue = builtinExact.get(channelName);
+            if (hue != null) return hue;
+
+            boolean[] found = automaton.match(channelName);
+            for (HueRule rule : rules) {
+                if (!found[rule.pattern]) continue;
+                if (rule.conditions == null) return rule.hue;
+                for (int condition : rule.conditions) {
+                    if (found[condition]) return rule.hue;
+                }
+            }
 
-        if (channelName.contains("violet")) return 264f / 360f;
-        if (channelName.contains("red")) return 0f / 360f;
-        if (channelName.contains("green")) return 102f / 360f;
-        if (channelName.contains("blue")) return 231f / 360f;
+            logger.info("Channel-color unknown. Please define a color for channel: " + channel);
+            return HueDAPI;
+        }
 
-        for (String name: hueMap.keySet()) {
-            if (channelName.contains(name)) return hueMap.get(name);
+        /**
+         * Adds the names as substring rules, longer names first (more specific, e.g. 'cy5.5' before 'cy5'), then alphabetically.
+         */
+        private void addNameRules(Map<String, Float> names) {
+            List<String> sorted = new ArrayList<>(names.keySet());
+            Collections.sort(sorted, (a, b) -> a.length() != b.length() ? b.length() - a.length() : a.compareTo(b));
+            for (String name : sorted) {
+                if (!name.isEmpty()) addRule(name, names.get(name));
+            }
         }
 
-        System.out.println("Channel-color unknown. Please define a color for channel: "+channel);
+        private void addRule(String pattern, float hue) {
+            rules.add(new HueRule(patternId(pattern), null, hue));
+        }
 
-        return HueDAPI;
+        private void addRule(String pattern, int[] conditions, float hue) {
+            rules.add(new HueRule(patternId(pattern), conditions, hue));
+        }
+
+        private int patternId(String pattern) {
+            Integer id = patternIds.get(pattern);
+            if (id == null) {
+                id = patterns.size();
+                patterns.add(pattern);
+                patternIds.put(pattern, id);
+            }
+            return id;
+        }
     }
 
     public static class ChannelHue {
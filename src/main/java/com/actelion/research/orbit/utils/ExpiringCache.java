@@ -0,0 +1,203 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+
+/**
+ * Thread-safe LRU cache with a maximum number of entries and an optional time-to-live per entry.<br>
+ * Null values are not cached. Hits, misses and evictions (size or TTL) are counted.
+ * <p>
+ * To avoid caching stale values after an invalidation, read-through callers should take a {@link #getStamp()} before
+ * loading and use {@link #put(Object, Object, long)}: the value is dropped if the cache was invalidated in the meantime.
+ */
+public class ExpiringCache<K, V> {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<K, CacheEntry<V>> map;
+    private long stamp = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    /**
+     * @param maxEntries maximum number of entries, least recently used entries are evicted first
+     * @param ttlMillis  time-to-live of an entry in milliseconds, &lt;=0 for no expiry
+     */
+    public ExpiringCache(final int maxEntries, long ttlMillis) {
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be >= 1");
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(ttlMillis) : 0;
+        this.map = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                if (size() > maxEntries) {
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached value or null if the key is not cached or expired.
+     */
+    public synchronized V get(K key) {
+        CacheEntry<V> entry = map.get(key);
+        if (entry != null && isExpired(entry, System.nanoTime())) {
+            map.remove(key);
+            evictionCount++;
+            entry = null;
+        }
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        if (value == null) return;
+        map.put(key, new CacheEntry<V>(value, ttlNanos > 0 ? System.nanoTime() + ttlNanos : 0));
+    }
+
+    /**
+     * Puts the value only if the cache has not been invalidated since stamp was taken.
+     *
+     * @return true if the value has been cached
+     */
+    public synchronized boolean put(K key, V value, long stamp) {
+        if (stamp != this.stamp) return false;
+        put(key, value);
+        return value != null;
+    }
+
+    /**
+     * Returns the current invalidation stamp, see {@link #put(Object, Object, long)}.
+     */
+    public synchronized long getStamp() {
+        return stamp;
+    }
+
+    public synchronized void remove(K key) {
+        map.remove(key);
+        stamp++;
+    }
+
+    /**
+     * Removes all entries matching the predicate.
+     */
+    public synchronized void removeIf(BiPredicate<K, V> predicate) {
+        Iterator<Map.Entry<K, CacheEntry<V>>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, CacheEntry<V>> e = it.next();
+            if (predicate.test(e.getKey(), e.getValue().value)) it.remove();
+        }
+        stamp++;
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        stamp++;
+    }
+
+    /**
+     * Removes all expired entries.
+     */
+    public synchronized void cleanUp() {
+        if (ttlNanos == 0) return;
+        long now = System.nanoTime();
+        Iterator<CacheEntry<V>> it = map.values().iterator();
+        while (it.hasNext()) {
+            if (isExpired(it.next(), now)) {
+                it.remove();
+                evictionCount++;
+            }
+        }
+    }
+
+    private boolean isExpired(CacheEntry<V> entry, long now) {
+        return entry.expires != 0 && now - entry.expires > 0;
+    }
+
+    public synchronized void resetStatistics() {
+        hitCount = 0;
+        missCount = 0;
+        evictionCount = 0;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTtlMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns hits / (hits + misses), NaN if the cache has not been used yet.
+     */
+    public synchronized double getHitRate() {
+        long total = hitCount + missCount;
+        if (total == 0) return Double.NaN;
+        return hitCount / (double) total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ExpiringCache [size=" + map.size() + ", maxEntries=" + maxEntries + ", hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount + "]";
+    }
+
+    private static final class CacheEntry<V> {
+        final V value;
+        final long expires; // System.nanoTime(), 0 = never
+
+        CacheEntry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+}
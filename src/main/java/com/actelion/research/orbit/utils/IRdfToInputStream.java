@@ -21,6 +21,7 @@ package com.actelion.research.orbit.utils;
 
 import com.actelion.research.orbit.beans.RawDataFile;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -28,4 +29,28 @@ public interface IRdfToInputStream {
 
     InputStream getInputStream(RawDataFile rdf) throws IOException;
 
+    /**
+     * Returns a stream positioned at offset, e.g. to resume a download.<br>
+     * The default implementation skips offset bytes of getInputStream(rdf). Implementations should override this method
+     * if the source supports random access (e.g. a file channel or an HTTP range request).
+     */
+    default InputStream getInputStream(RawDataFile rdf, long offset) throws IOException {
+        InputStream is = getInputStream(rdf);
+        long remaining = offset;
+        try {
+            while (remaining > 0) {
+                long skipped = is.skip(remaining);
+                if (skipped <= 0) {
+                    if (is.read() < 0) throw new EOFException("offset " + offset + " is beyond the end of " + rdf.getFileName());
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        } catch (IOException e) {
+            is.close();
+            throw e;
+        }
+        return is;
+    }
+
 }
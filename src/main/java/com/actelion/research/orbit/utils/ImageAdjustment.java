@@ -0,0 +1,119 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils;
+
+import com.actelion.research.orbit.utils.parser.CharNumberParser;
+
+import java.io.Serializable;
+
+/**
+ * Display adjustment of an image as stored in the ImageAdjustments meta (RawUtilsCommon.STR_META_IMAGEADJUSTMENTS),
+ * e.g. 'bri:0;con:232;r:0;g:0;b:0;gamma:100;deconvChan:0;deconvName:H&amp;E'. Only bri, con and gamma are used.<br>
+ * For a normalized intensity t (0..1) the adjusted value is ((t^(100/gamma)) - 0.5) * con/100 + 0.5 + bri/100, clamped to 0..1.
+ * Missing keys and contrast or gamma values &lt;=0 mean no adjustment.
+ * <p>
+ * Immutable, can be used as a cache key.
+ */
+public final class ImageAdjustment implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final ImageAdjustment NONE = new ImageAdjustment(0, 100, 100);
+
+    private final int brightness; // percent of the output range added, 0 = unchanged
+    private final int contrast;   // percent, 100 = unchanged
+    private final int gamma;      // percent, 100 = linear
+
+    public ImageAdjustment(int brightness, int contrast, int gamma) {
+        this.brightness = brightness;
+        this.contrast = contrast > 0 ? contrast : 100;
+        this.gamma = gamma > 0 ? gamma : 100;
+    }
+
+    /**
+     * Parses the bri, con and gamma values of an ImageAdjustments meta value. Unknown keys and invalid values are ignored.
+     */
+    public static ImageAdjustment parse(String metaValue) {
+        if (metaValue == null || metaValue.trim().isEmpty()) return NONE;
+        int bri = 0;
+        int con = 100;
+        int gamma = 100;
+        for (String pair : metaValue.split(";")) {
+            int idx = pair.indexOf(':');
+            if (idx <= 0) continue;
+            String key = pair.substring(0, idx).trim();
+            if (!key.equals("bri") && !key.equals("con") && !key.equals("gamma")) continue;
+            String value = pair.substring(idx + 1).trim();
+            char[] chars = value.toCharArray();
+            double d = CharNumberParser.parseDouble(chars, 0, chars.length, Double.NaN);
+            if (Double.isNaN(d)) continue;
+            int v = (int) Math.round(d);
+            if (key.equals("bri")) bri = v;
+            else if (key.equals("con")) con = v;
+            else gamma = v;
+        }
+        return new ImageAdjustment(bri, con, gamma);
+    }
+
+    /**
+     * Applies the adjustment to a normalized intensity (0..1), returns a value in 0..1.
+     */
+    public double apply(double t) {
+        if (t <= 0) t = 0;
+        else if (t >= 1) t = 1;
+        else if (gamma != 100) t = Math.pow(t, 100d / gamma);
+        t = (t - 0.5) * (contrast / 100d) + 0.5 + brightness / 100d;
+        return t < 0 ? 0 : (t > 1 ? 1 : t);
+    }
+
+    public boolean isNone() {
+        return brightness == 0 && contrast == 100 && gamma == 100;
+    }
+
+    public int getBrightness() {
+        return brightness;
+    }
+
+    public int getContrast() {
+        return contrast;
+    }
+
+    public int getGamma() {
+        return gamma;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ImageAdjustment)) return false;
+        ImageAdjustment that = (ImageAdjustment) o;
+        return brightness == that.brightness && contrast == that.contrast && gamma == that.gamma;
+    }
+
+    @Override
+    public int hashCode() {
+        return (brightness * 31 + contrast) * 31 + gamma;
+    }
+
+    @Override
+    public String toString() {
+        return "bri:" + brightness + ";con:" + contrast + ";gamma:" + gamma;
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils;
+
+import com.actelion.research.orbit.beans.MinMaxPerChan;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.Serializable;
+
+/**
+ * Per-channel intensity distribution of an image with fixed memory.<br>
+ * Integer data up to 16 bits per sample is counted exactly in one bin per intensity (256 bins for 8 bit, 65536 for 16 bit),
+ * floating point and wider integer data is summarized with a {@link QuantileSketch} per channel.
+ * Histograms are fed tile by tile with {@link #add(Raster)} and can be merged, e.g. when tiles are processed in parallel.
+ * <p>
+ * Not thread-safe, use one histogram per thread and merge them.
+ */
+public class IntensityHistogram implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int numChannels;
+    private final int bitsPerSample;
+    private final long[][] bins;             // integer data, null otherwise
+    private final QuantileSketch[] sketches; // floating point data, null otherwise
+    private final long[] counts;
+
+    /**
+     * @param numChannels   number of bands
+     * @param bitsPerSample bits per sample, values &gt;16 (or 0 for floating point data) use a quantile sketch
+     */
+    public IntensityHistogram(int numChannels, int bitsPerSample) {
+        this.numChannels = numChannels;
+        this.bitsPerSample = bitsPerSample;
+        this.counts = new long[numChannels];
+        if (isExact()) {
+            bins = new long[numChannels][1 << bitsPerSample];
+            sketches = null;
+        } else {
+            bins = null;
+            sketches = new QuantileSketch[numChannels];
+            for (int c = 0; c < numChannels; c++) {
+                sketches[c] = new QuantileSketch();
+            }
+        }
+    }
+
+    /**
+     * Creates an empty histogram matching the raster's number of bands and sample size.
+     */
+    public static IntensityHistogram forRaster(Raster raster) {
+        return new IntensityHistogram(raster.getNumBands(), getBitsPerSample(raster));
+    }
+
+    /**
+     * Returns the bits per sample of the raster or 0 for floating point data.
+     */
+    public static int getBitsPerSample(Raster raster) {
+        int dataType = raster.getDataBuffer().getDataType();
+        if (dataType == DataBuffer.TYPE_FLOAT || dataType == DataBuffer.TYPE_DOUBLE) return 0;
+        int bits = 0;
+        for (int b = 0; b < raster.getNumBands(); b++) {
+            bits = Math.max(bits, raster.getSampleModel().getSampleSize(b));
+        }
+        return bits <= 8 ? 8 : bits;
+    }
+
+    private boolean isExact() {
+        return bitsPerSample > 0 && bitsPerSample <= 16;
+    }
+
+    /**
+     * Adds all samples of the raster.
+     */
+    public void add(Raster raster) {
+        add(raster, raster.getBounds());
+    }
+
+    /**
+     * Adds the samples of the raster inside the region (e.g. to exclude the padding of border tiles).
+     */
+    public void add(Raster raster, Rectangle region) {
+        Rectangle r = region.intersection(raster.getBounds());
+        if (r.isEmpty()) return;
+        int bands = Math.min(numChannels, raster.getNumBands());
+        int n = r.width * r.height;
+        if (isExact()) {
+            int[] samples = new int[n];
+            int mask = (1 << bitsPerSample) - 1;
+            for (int b = 0; b < bands; b++) {
+                raster.getSamples(r.x, r.y, r.width, r.height, b, samples);
+                long[] h = bins[b];
+                for (int i = 0; i < n; i++) {
+                    h[samples[i] & mask]++;
+                }
+                counts[b] += n;
+            }
+        } else {
+            double[] samples = new double[n];
+            for (int b = 0; b < bands; b++) {
+                raster.getSamples(r.x, r.y, r.width, r.height, b, samples);
+                QuantileSketch sketch = sketches[b];
+                for (int i = 0; i < n; i++) {
+                    sketch.add(samples[i]);
+                }
+                counts[b] = sketch.getCount();
+            }
+        }
+    }
+
+    /**
+     * Merges the other histogram into this one.
+     *
+     * @return this
+     */
+    public IntensityHistogram merge(IntensityHistogram other) {
+        if (other == null) return this;
+        if (other.numChannels != numChannels || other.bitsPerSample != bitsPerSample) {
+            throw new IllegalArgumentException("histograms with different channels or bits per sample cannot be merged");
+        }
+        for (int c = 0; c < numChannels; c++) {
+            if (isExact()) {
+                long[] h = bins[c];
+                long[] o = other.bins[c];
+                for (int i = 0; i < h.length; i++) {
+                    h[i] += o[i];
+                }
+                counts[c] += other.counts[c];
+            } else {
+                sketches[c].merge(other.sketches[c]);
+                counts[c] = sketches[c].getCount();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns the q-quantile (0..1) of the channel, NaN if the channel is empty.
+     * The value is exact for integer data and has the relative accuracy of the QuantileSketch otherwise.
+     */
+    public double getQuantile(int channel, double q) {
+        if (q < 0 || q > 1) throw new IllegalArgumentException("quantile must be in [0,1]");
+        if (!isExact()) return sketches[channel].getQuantile(q);
+        long total = counts[channel];
+        if (total == 0) return Double.NaN;
+        long rank = (long) (q * (total - 1));
+        long n = 0;
+        long[] h = bins[channel];
+        for (int i = 0; i < h.length; i++) {
+            n += h[i];
+            if (n > rank) return i;
+        }
+        return h.length - 1;
+    }
+
+    /**
+     * Returns the p-th percentile (0..100) of the channel.
+     */
+    public double getPercentile(int channel, double p) {
+        return getQuantile(channel, p / 100d);
+    }
+
+    public double getMin(int channel) {
+        return getQuantile(channel, 0);
+    }
+
+    public double getMax(int channel) {
+        return getQuantile(channel, 1);
+    }
+
+    /**
+     * Returns the per channel intensities at the low and high quantile, e.g. (0.01, 0.99) for a robust contrast stretch.
+     */
+    public MinMaxPerChan toMinMaxPerChan(double lowQuantile, double highQuantile) {
+        int[] min = new int[numChannels];
+        int[] max = new int[numChannels];
+        for (int c = 0; c < numChannels; c++) {
+            double lo = getQuantile(c, lowQuantile);
+            double hi = getQuantile(c, highQuantile);
+            min[c] = Double.isNaN(lo) ? 0 : (int) Math.floor(lo);
+            max[c] = Double.isNaN(hi) ? 0 : (int) Math.ceil(hi);
+        }
+        return new MinMaxPerChan(min, max);
+    }
+
+    /**
+     * Returns the bins of the channel (index = intensity) or null for floating point data.
+     */
+    public long[] getBins(int channel) {
+        return bins != null ? bins[channel] : null;
+    }
+
+    /**
+     * Returns the quantile sketch of the channel or null for integer data.
+     */
+    public QuantileSketch getSketch(int channel) {
+        return sketches != null ? sketches[channel] : null;
+    }
+
+    public long getCount(int channel) {
+        return counts[channel];
+    }
+
+    public int getNumChannels() {
+        return numChannels;
+    }
+
+    public int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+}
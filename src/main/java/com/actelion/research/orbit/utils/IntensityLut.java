@@ -0,0 +1,188 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils;
+
+import java.awt.Point;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * Lookup table which maps 8..16 bit intensities to 8 bit display values.<br>
+ * The table has one entry per possible sample value (65536 for 16 bit data) and is built once from an intensity window
+ * (min/max, e.g. from IOrbitImage.getMinMaxAnalysis() or percentiles of an IntensityHistogram) and an ImageAdjustment,
+ * so converting a tile is one table lookup per sample. Samples outside the table range are clamped to its first or last entry.
+ * <p>
+ * Immutable and thread-safe.
+ */
+public final class IntensityLut {
+
+    private final byte[] table;
+    private final int maxIndex;
+    private final int min;
+    private final int max;
+    private final ImageAdjustment adjustment;
+
+    /**
+     * @param bitsPerSample bits per sample of the source data (1..16)
+     * @param min           intensity mapped to 0 (before the adjustment)
+     * @param max           intensity mapped to 255 (before the adjustment)
+     * @param adjustment    brightness, contrast and gamma, null for none
+     */
+    public IntensityLut(int bitsPerSample, int min, int max, ImageAdjustment adjustment) {
+        if (bitsPerSample < 1 || bitsPerSample > 16) throw new IllegalArgumentException("bitsPerSample must be in 1..16");
+        this.min = min;
+        this.max = max;
+        this.adjustment = adjustment != null ? adjustment : ImageAdjustment.NONE;
+        int size = 1 << bitsPerSample;
+        this.maxIndex = size - 1;
+        this.table = new byte[size];
+        double range = Math.max(1, max - min);
+        for (int i = 0; i < size; i++) {
+            double t = (i - min) / range;
+            table[i] = (byte) Math.round(this.adjustment.apply(t) * 255d);
+        }
+    }
+
+    /**
+     * Returns the display value (0..255) of the sample.
+     */
+    public int lookup(int sample) {
+        return table[Math.min(Math.max(sample, 0), maxIndex)] & 0xff;
+    }
+
+    /**
+     * Converts the bands of the source (luts[i] for band i) to an 8 bit pixel interleaved raster at the location of the source.
+     * If target is not null it is reused and must be a byte raster with the size and at least the number of bands of the source.
+     *
+     * @return the target
+     */
+    public static WritableRaster apply(Raster source, IntensityLut[] luts, WritableRaster target) {
+        int w = source.getWidth();
+        int h = source.getHeight();
+        int bands = source.getNumBands();
+        if (luts.length < bands) throw new IllegalArgumentException(luts.length + " luts for " + bands + " bands");
+        if (target == null) {
+            target = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, w, h, bands, new Point(source.getMinX(), source.getMinY()));
+        } else if (target.getWidth() != w || target.getHeight() != h || target.getNumBands() < bands || target.getDataBuffer().getDataType() != DataBuffer.TYPE_BYTE) {
+            throw new IllegalArgumentException("target must be a byte raster with the size and number of bands of the source");
+        }
+        int[] row = null;
+        for (int b = 0; b < bands; b++) {
+            if (!applyDirect(source, b, luts[b], target)) {
+                if (row == null) row = new int[w];
+                byte[] table = luts[b].table;
+                int maxIndex = luts[b].maxIndex;
+                for (int y = 0; y < h; y++) {
+                    source.getSamples(source.getMinX(), source.getMinY() + y, w, 1, b, row);
+                    for (int x = 0; x < w; x++) {
+                        row[x] = table[Math.min(Math.max(row[x], 0), maxIndex)] & 0xff;
+                    }
+                    target.setSamples(target.getMinX(), target.getMinY() + y, w, 1, b, row);
+                }
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Converts one band with direct access to the sample arrays of component sample models.
+     *
+     * @return false if source or target do not allow direct access
+     */
+    private static boolean applyDirect(Raster source, int band, IntensityLut lut, WritableRaster target) {
+        if (!(source.getSampleModel() instanceof ComponentSampleModel) || !(target.getSampleModel() instanceof PixelInterleavedSampleModel)
+                || !(target.getDataBuffer() instanceof DataBufferByte)) {
+            return false;
+        }
+        ComponentSampleModel sm = (ComponentSampleModel) source.getSampleModel();
+        int bank = sm.getBankIndices()[band];
+        DataBuffer db = source.getDataBuffer();
+        short[] shorts = null;
+        byte[] bytes = null;
+        boolean signed = false;
+        if (db instanceof DataBufferUShort) shorts = ((DataBufferUShort) db).getData(bank);
+        else if (db instanceof DataBufferShort) {
+            shorts = ((DataBufferShort) db).getData(bank);
+            signed = true;
+        } else if (db instanceof DataBufferByte) bytes = ((DataBufferByte) db).getData(bank);
+        else return false;
+
+        PixelInterleavedSampleModel tsm = (PixelInterleavedSampleModel) target.getSampleModel();
+        int tBank = tsm.getBankIndices()[band];
+        byte[] out = ((DataBufferByte) target.getDataBuffer()).getData(tBank);
+        int tPixelStride = tsm.getPixelStride();
+        int tScanlineStride = tsm.getScanlineStride();
+        int tBase = target.getDataBuffer().getOffsets()[tBank] + tsm.getBandOffsets()[band]
+                + (target.getMinY() - target.getSampleModelTranslateY()) * tScanlineStride
+                + (target.getMinX() - target.getSampleModelTranslateX()) * tPixelStride;
+
+        int pixelStride = sm.getPixelStride();
+        int scanlineStride = sm.getScanlineStride();
+        int base = db.getOffsets()[bank] + sm.getBandOffsets()[band]
+                + (source.getMinY() - source.getSampleModelTranslateY()) * scanlineStride
+                + (source.getMinX() - source.getSampleModelTranslateX()) * pixelStride;
+
+        byte[] table = lut.table;
+        int maxIndex = lut.maxIndex;
+        int w = source.getWidth();
+        int h = source.getHeight();
+        for (int y = 0; y < h; y++) {
+            int idx = base + y * scanlineStride;
+            int tIdx = tBase + y * tScanlineStride;
+            if (signed) {
+                for (int x = 0; x < w; x++, idx += pixelStride, tIdx += tPixelStride) {
+                    out[tIdx] = table[Math.min(Math.max(shorts[idx], 0), maxIndex)];
+                }
+            } else if (shorts != null) {
+                for (int x = 0; x < w; x++, idx += pixelStride, tIdx += tPixelStride) {
+                    out[tIdx] = table[Math.min(shorts[idx] & 0xffff, maxIndex)];
+                }
+            } else {
+                for (int x = 0; x < w; x++, idx += pixelStride, tIdx += tPixelStride) {
+                    out[tIdx] = table[Math.min(bytes[idx] & 0xff, maxIndex)];
+                }
+            }
+        }
+        return true;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public ImageAdjustment getAdjustment() {
+        return adjustment;
+    }
+
+    public int getSize() {
+        return table.length;
+    }
+
+}
@@ -21,14 +21,21 @@ package com.actelion.research.orbit.utils;
 
 import java.lang.ref.WeakReference;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Simple logger. Needs no config file.<br>
  * Use it like Log4J and set logLevel to the logging level you want.
+ * <p>
+ * By default log calls are dispatched to the log listeners in the calling thread. With {@link #setAsync(boolean)}
+ * log calls only publish an event into a lock-free ring buffer and a background thread formats and dispatches them.
+ * Messages are only formatted in the formats (full/small) requested by the listeners, and the caller line number
+ * (part of the full format) can be disabled with {@link #setCaptureCallerLocation(boolean)} because capturing it is expensive.
+ * <p>
+ * Listeners are weakly referenced and kept in a copy-on-write list, so log calls iterate a stable snapshot without locking.
+ * Listeners which have been garbage collected are purged automatically.
  */
 public class Logger implements ILogListener {
 
@@ -47,9 +54,12 @@ public class Logger implements ILogListener {
     public static final int LOG_LEVEL_ERROR = 3;
     public static final int LOG_FORMAT_FULL = 0;
     public static final int LOG_FORMAT_SMALL = 1;
+    private static final long ASYNC_SHUTDOWN_TIMEOUT_MILLIS = 5000L;
     private int logLevel = LOG_LEVEL_TRACE;
-    private final static List<WeakReference<ILogListener>> logListeners = new ArrayList<WeakReference<ILogListener>>();
-    private final static ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final static List<WeakReference<ILogListener>> logListeners = new CopyOnWriteArrayList<WeakReference<ILogListener>>();
+    private static volatile AsyncLogDispatcher asyncDispatcher = null;
+    private static volatile boolean captureCallerLocation = true;
+    private static Thread shutdownHook = null;
 
 
     @SuppressWarnings("unchecked")
@@ -63,77 +73,143 @@ public class Logger implements ILogListener {
     }
 
     public static void AddLogListener(ILogListener logListener) {
-        lock.writeLock().lock();
-        try {
-            logListeners.add(new WeakReference<ILogListener>(logListener));
-        } finally {
-            lock.writeLock().unlock();
-        }
+        logListeners.add(new WeakReference<ILogListener>(logListener));
     }
 
-    public static boolean RemoveLogListener(ILogListener logListener) {
-        boolean r = false;
-        lock.writeLock().lock();
-        try {
-            List<Integer> toDel = new ArrayList<Integer>();
-            int i = 0;
-            for (WeakReference<ILogListener> logListenerRef : logListeners) {
-                ILogListener ll = logListenerRef.get();
-                if (ll != null) {
-                    if (ll.equals(logListener)) {
-                        toDel.add(i);
-                    }
-                }
-                i++;
-            }
+    /**
+     * Removes all registrations of the listener (and listeners which have been garbage collected).
+     *
+     * @return true if the listener was registered
+     */
+    public static boolean RemoveLogListener(final ILogListener logListener) {
+        final boolean[] found = new boolean[1];
+        logListeners.removeIf(logListenerRef -> {
+            ILogListener ll = logListenerRef.get();
+            if (ll != null && ll.equals(logListener)) found[0] = true;
+            return ll == null || ll.equals(logListener);
+        });
+        return found[0];
+    }
 
-            if (toDel.size() > 0) {
-                r = true;
-                for (int del : toDel) {
-                    logListeners.remove(del);
-                }
+    private static void purgeClearedListeners() {
+        logListeners.removeIf(logListenerRef -> logListenerRef.get() == null);
+    }
+
+    /**
+     * Enables or disables the asynchronous mode for all loggers.
+     * Disabling (and JVM shutdown) dispatches the pending events first.
+     */
+    public static synchronized void setAsync(boolean async) {
+        setAsync(async, AsyncLogDispatcher.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param bufferSize number of events the ring buffer can hold (rounded up to a power of two), log calls wait if it is full
+     */
+    public static synchronized void setAsync(boolean async, int bufferSize) {
+        AsyncLogDispatcher old = asyncDispatcher;
+        if (async) {
+            asyncDispatcher = new AsyncLogDispatcher(bufferSize);
+            if (shutdownHook == null) {
+                shutdownHook = new Thread(() -> {
+                    AsyncLogDispatcher dispatcher = asyncDispatcher;
+                    if (dispatcher != null) dispatcher.flush(ASYNC_SHUTDOWN_TIMEOUT_MILLIS);
+                }, "OrbitLogDispatcherShutdown");
+                Runtime.getRuntime().addShutdownHook(shutdownHook);
             }
-        } finally {
-            lock.writeLock().unlock();
+        } else {
+            asyncDispatcher = null;
         }
-        return r;
+        if (old != null) old.shutdown(ASYNC_SHUTDOWN_TIMEOUT_MILLIS);
     }
 
-    private void logout(int level, String message) {
-        lock.readLock().lock();
-        try {
-            String levelStr = "";
-            switch (level) {
-                case LOG_LEVEL_ERROR:
-                    levelStr = "ERROR";
-                    break;
-                case LOG_LEVEL_INFO:
-                    levelStr = "INFO";
-                    break;
-                case LOG_LEVEL_DEBUG:
-                    levelStr = "DEBUG";
-                    break;
-                default:
-                    levelStr = "TRACE";
-            }
+    public static boolean isAsync() {
+        return asyncDispatcher != null;
+    }
 
-            String sFull = (dateStr() + " " + levelStr + " " + c.getName() + ":"  + Thread.currentThread().getStackTrace()[3].getLineNumber() + " - " + message);
-            String sSmall = (dateStr() + " " + levelStr + " " + message);
+    /**
+     * Waits until all pending asynchronous log events have been dispatched (returns immediately in synchronous mode).
+     *
+     * @return false if the timeout elapsed before
+     */
+    public static boolean flush(long timeoutMillis) {
+        AsyncLogDispatcher dispatcher = asyncDispatcher;
+        return dispatcher == null || dispatcher.flush(timeoutMillis);
+    }
 
-            for (WeakReference<ILogListener> logListenerRef : logListeners) {
-                ILogListener logListener = logListenerRef.get();
-                if (logListener != null) {
-                    if (logListener.getLogLevel() <= level) {
-                        if (logListener.getLogFormat() == LOG_FORMAT_FULL)
-                            logListener.outputLog(level, sFull);
-                        else logListener.outputLog(level, sSmall);
+    /**
+     * If enabled (default) the line number of the log call is determined (via the stack trace) and shown in the full format.
+     */
+    public static void setCaptureCallerLocation(boolean capture) {
+        captureCallerLocation = capture;
+    }
+
+    public static boolean isCaptureCallerLocation() {
+        return captureCallerLocation;
+    }
+
+    private void logout(int level, String message) {
+        int line = -1;
+        if (captureCallerLocation && isFormatRequested(level, LOG_FORMAT_FULL)) {
+            line = Thread.currentThread().getStackTrace()[3].getLineNumber();
+        }
+        AsyncLogDispatcher dispatcher = asyncDispatcher;
+        if (dispatcher != null) {
+            dispatcher.publish(level, c, message, System.currentTimeMillis(), line);
+            return;
+        }
+        dispatch(level, c, message, System.currentTimeMillis(), line);
+    }
+
+    /**
+     * Formats the message and passes it to all listeners with a suitable log level.
+     */
+    static void dispatch(int level, Class<?> source, String message, long time, int line) {
+        String date = null;
+        String sFull = null;
+        String sSmall = null;
+        boolean cleared = false;
+        for (WeakReference<ILogListener> logListenerRef : logListeners) {
+            ILogListener logListener = logListenerRef.get();
+            if (logListener == null) {
+                cleared = true;
+            } else if (logListener.getLogLevel() <= level) {
+                if (date == null) date = dateStr(time);
+                if (logListener.getLogFormat() == LOG_FORMAT_FULL) {
+                    if (sFull == null) {
+                        sFull = date + " " + levelStr(level) + " " + source.getName() + (line >= 0 ? ":" + line : "") + " - " + message;
                     }
+                    logListener.outputLog(level, sFull);
+                } else {
+                    if (sSmall == null) sSmall = date + " " + levelStr(level) + " " + message;
+                    logListener.outputLog(level, sSmall);
                 }
             }
-        } finally {
-            lock.readLock().unlock();
         }
+        if (cleared) purgeClearedListeners();
+    }
 
+    private static boolean isFormatRequested(int level, int logFormat) {
+        for (WeakReference<ILogListener> logListenerRef : logListeners) {
+            ILogListener logListener = logListenerRef.get();
+            if (logListener != null && logListener.getLogLevel() <= level && (logListener.getLogFormat() == LOG_FORMAT_FULL) == (logFormat == LOG_FORMAT_FULL)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String levelStr(int level) {
+        switch (level) {
+            case LOG_LEVEL_ERROR:
+                return "ERROR";
+            case LOG_LEVEL_INFO:
+                return "INFO";
+            case LOG_LEVEL_DEBUG:
+                return "DEBUG";
+            default:
+                return "TRACE";
+        }
     }
 
     public void logStackTrace(StackTraceElement[] stackTraceElements) {
@@ -166,8 +242,8 @@ public class Logger implements ILogListener {
             logout(LOG_LEVEL_TRACE, s);
     }
 
-    private String dateStr() {
-        return dateFormat.get().format(new Date(System.currentTimeMillis()));
+    private static String dateStr(long time) {
+        return dateFormat.get().format(new Date(time));
     }
 
     public SimpleDateFormat getDateFormat() {
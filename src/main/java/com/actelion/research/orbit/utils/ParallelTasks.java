@@ -0,0 +1,145 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.actelion.research.orbit.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs batches of independent tasks (tile reads, file chunks, ...) on one shared, bounded pool of daemon threads.<br>
+ * The calling thread takes part in the work and helper threads are only used if they are idle, so nested batches
+ * (e.g. a task which reads tiles of another image) and a saturated pool cannot deadlock: at worst the caller
+ * processes all tasks itself. The pool size can be set with the system property orbit.parallel.poolSize
+ * (default 2 x number of processors, at least 4 threads), idle threads terminate after KEEP_ALIVE_SECONDS.
+ */
+public final class ParallelTasks {
+
+    private static final long KEEP_ALIVE_SECONDS = 30L;
+    private static final ThreadPoolExecutor executor = createExecutor(Integer.getInteger("orbit.parallel.poolSize", Math.max(4, Runtime.getRuntime().availableProcessors() * 2)));
+
+    private ParallelTasks() {
+    }
+
+    /**
+     * Runs the tasks with up to parallelism concurrent calls (including the calling thread) and returns the results in task order.
+     * After the first failure no further tasks are started and the exception is rethrown (errors and unchecked exceptions as they are).
+     */
+    public static <T> List<T> invokeAll(final List<? extends Callable<? extends T>> tasks, int parallelism) throws Exception {
+        final int n = tasks.size();
+        final Object[] results = new Object[n];
+        final AtomicInteger next = new AtomicInteger(0);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Runnable worker = () -> {
+            int i;
+            while (failure.get() == null && (i = next.getAndIncrement()) < n) {
+                try {
+                    results[i] = tasks.get(i).call();
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        };
+        int numHelpers = Math.min(parallelism, n) - 1;
+        List<Helper> helpers = new ArrayList<Helper>(Math.max(0, numHelpers));
+        for (int h = 0; h < numHelpers; h++) {
+            Helper helper = new Helper(worker);
+            helper.future = executor.submit(helper);
+            helpers.add(helper);
+        }
+        worker.run();
+        // all tasks are claimed: helpers which have not started are not needed anymore, running helpers finish their current task
+        boolean interrupted = false;
+        for (Helper helper : helpers) {
+            if (helper.started.compareAndSet(false, true)) {
+                executor.remove((Runnable) helper.future);
+                continue;
+            }
+            while (true) {
+                try {
+                    helper.future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    failure.compareAndSet(null, e);
+                } catch (ExecutionException e) {
+                    failure.compareAndSet(null, e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        Throwable t = failure.get();
+        if (t instanceof Exception) throw (Exception) t;
+        if (t instanceof Error) throw (Error) t;
+        @SuppressWarnings("unchecked")
+        List<T> list = (List<T>) Arrays.asList(results);
+        return list;
+    }
+
+    /**
+     * Runs the worker unless the caller has already finished (the started flag decides who wins).
+     */
+    private static final class Helper implements Runnable {
+        private final Runnable worker;
+        private final AtomicBoolean started = new AtomicBoolean(false);
+        private Future<?> future;
+
+        Helper(Runnable worker) {
+            this.worker = worker;
+        }
+
+        @Override
+        public void run() {
+            if (started.compareAndSet(false, true)) worker.run();
+        }
+    }
+
+    /**
+     * Number of threads of the shared pool.
+     */
+    public static int getPoolSize() {
+        return executor.getMaximumPoolSize();
+    }
+
+    private static ThreadPoolExecutor createExecutor(int poolSize) {
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, "OrbitParallel-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils;
+
+import java.io.Serializable;
+
+/**
+ * Mergeable quantile sketch for floating point values with relative accuracy guarantee (DDSketch).<br>
+ * Values are counted in logarithmically sized buckets, so every quantile is returned with a relative error of at most
+ * relativeAccuracy. The memory is bounded by maxBuckets per sign, if more buckets are needed the lowest buckets are collapsed.
+ * NaN values are ignored.
+ * <p>
+ * Not thread-safe, use one sketch per thread and merge them.
+ */
+public class QuantileSketch implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+    public static final int DEFAULT_MAX_BUCKETS = 2048;
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+    private final Store positive;
+    private final Store negative;
+    private long zeroCount = 0;
+    private long count = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public QuantileSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BUCKETS);
+    }
+
+    public QuantileSketch(double relativeAccuracy, int maxBuckets) {
+        if (relativeAccuracy <= 0 || relativeAccuracy >= 1) throw new IllegalArgumentException("relativeAccuracy must be in (0,1)");
+        if (maxBuckets < 2) throw new IllegalArgumentException("maxBuckets must be >= 2");
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+        this.positive = new Store(maxBuckets);
+        this.negative = new Store(maxBuckets);
+    }
+
+    public void add(double x) {
+        if (x != x) return;
+        if (x > Double.MIN_NORMAL) {
+            positive.add(index(x), 1);
+        } else if (x < -Double.MIN_NORMAL) {
+            negative.add(index(-x), 1);
+        } else {
+            zeroCount++;
+        }
+        count++;
+        if (x < min) min = x;
+        if (x > max) max = x;
+    }
+
+    /**
+     * Merges the other sketch into this one. Both sketches must have the same relative accuracy.
+     *
+     * @return this
+     */
+    public QuantileSketch merge(QuantileSketch other) {
+        if (other == null || other.count == 0) return this;
+        if (other.relativeAccuracy != relativeAccuracy) throw new IllegalArgumentException("sketches with different relative accuracy cannot be merged");
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeroCount += other.zeroCount;
+        count += other.count;
+        if (other.min < min) min = other.min;
+        if (other.max > max) max = other.max;
+        return this;
+    }
+
+    /**
+     * Returns the approximate q-quantile (0..1), NaN if the sketch is empty.
+     */
+    public double getQuantile(double q) {
+        if (q < 0 || q > 1) throw new IllegalArgumentException("quantile must be in [0,1]");
+        if (count == 0) return Double.NaN;
+        if (q == 0) return min;
+        if (q == 1) return max;
+        long rank = (long) (q * (count - 1));
+        double value;
+        if (rank < negative.total) {
+            // negative values: highest index is the most negative value
+            value = -value(negative.indexAtRankFromTop(rank));
+        } else if (rank < negative.total + zeroCount) {
+            value = 0d;
+        } else {
+            value = value(positive.indexAtRank(rank - negative.total - zeroCount));
+        }
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private int index(double x) {
+        return (int) Math.ceil(Math.log(x) / logGamma);
+    }
+
+    private double value(int index) {
+        return 2d * Math.pow(gamma, index) / (gamma + 1d);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    public double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    @Override
+    public String toString() {
+        return "QuantileSketch [count=" + count + ", min=" + getMin() + ", median=" + getQuantile(0.5) + ", max=" + getMax() + "]";
+    }
+
+
+    /**
+     * Dense bucket counts for a window of at most maxBuckets consecutive indices.
+     * Indices below the window are collapsed into the lowest bucket.
+     */
+    private static final class Store implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int maxBuckets;
+        private long[] counts = null; // allocated lazily
+        private int offset = 0;       // index of counts[0]
+        private int minIndex = Integer.MAX_VALUE;
+        private int maxIndex = Integer.MIN_VALUE;
+        private long total = 0;
+
+        Store(int maxBuckets) {
+            this.maxBuckets = maxBuckets;
+        }
+
+        void add(int index, long cnt) {
+            if (counts == null) {
+                counts = new long[maxBuckets];
+                offset = index - maxBuckets / 2;
+            }
+            if (index >= offset + maxBuckets) {
+                shift(index - maxBuckets + 1);
+            } else if (index < offset) {
+                int newOffset = Math.max(index, maxIndex - maxBuckets + 1);
+                if (newOffset < offset) shift(newOffset);
+                if (index < offset) index = offset; // collapse into the lowest bucket
+            }
+            counts[index - offset] += cnt;
+            total += cnt;
+            if (index < minIndex) minIndex = index;
+            if (index > maxIndex) maxIndex = index;
+        }
+
+        /**
+         * Moves the window to start at newOffset, buckets below newOffset are collapsed into the lowest bucket.
+         */
+        private void shift(int newOffset) {
+            long[] shifted = new long[maxBuckets];
+            int newMin = Integer.MAX_VALUE;
+            int newMax = Integer.MIN_VALUE;
+            if (total > 0) {
+                for (int idx = minIndex; idx <= maxIndex; idx++) {
+                    long c = counts[idx - offset];
+                    if (c == 0) continue;
+                    int target = Math.max(idx, newOffset);
+                    shifted[target - newOffset] += c;
+                    if (target < newMin) newMin = target;
+                    if (target > newMax) newMax = target;
+                }
+            }
+            counts = shifted;
+            offset = newOffset;
+            minIndex = newMin;
+            maxIndex = newMax;
+        }
+
+        void merge(Store other) {
+            if (other.total == 0) return;
+            for (int idx = other.minIndex; idx <= other.maxIndex; idx++) {
+                long c = other.counts[idx - other.offset];
+                if (c > 0) add(idx, c);
+            }
+        }
+
+        /**
+         * Returns the bucket index containing the value with the given rank (0-based, ascending index order).
+         */
+        int indexAtRank(long rank) {
+            long n = 0;
+            for (int idx = minIndex; idx <= maxIndex; idx++) {
+                n += counts[idx - offset];
+                if (n > rank) return idx;
+            }
+            return maxIndex;
+        }
+
+        /**
+         * Returns the bucket index containing the value with the given rank (0-based, descending index order).
+         */
+        int indexAtRankFromTop(long rank) {
+            long n = 0;
+            for (int idx = maxIndex; idx >= minIndex; idx--) {
+                n += counts[idx - offset];
+                if (n > rank) return idx;
+            }
+            return minIndex;
+        }
+    }
+
+}
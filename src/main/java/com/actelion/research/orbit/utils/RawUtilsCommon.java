@@ -26,9 +26,17 @@ import java.awt.*;
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 public class RawUtilsCommon {
     public final static int SEARCH_LIMIT = 190;
@@ -81,6 +89,8 @@ public class RawUtilsCommon {
     public final static String PlateFormat_96 = "96";
 
     public static int MAX_INTENS_16BIT = 65535;
+    public static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+    private static final long TRANSFER_CHUNK_SIZE = 16L * 1024 * 1024;
 
 
     // LIMS specific
@@ -337,45 +347,24 @@ public class RawUtilsCommon {
     }
 
 
+    /**
+     * Returns the content of the url (default charset) with line ends normalized to \n.
+     */
     public static String getContentStr(URL url) {
-        StringBuilder sb = new StringBuilder();
-        BufferedReader in = null;
-        try {
-            in = new BufferedReader(
-                    new InputStreamReader(url.openStream()));
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                sb.append(inputLine + "\n");
-            }
-            in.close();
+        try (InputStream in = openStream(url, true)) {
+            return normalizeLineEnds(readString(in, Charset.defaultCharset()));
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                if (in != null) in.close();
-            } catch (Exception e) {
-            }
         }
-        return sb.toString();
+        return "";
     }
 
     public static void getContentToOutputstream(URL url, OutputStream out) {
-        byte[] bytes = new byte[1024];
-        InputStream is = null;
-        try {
-            is = new BufferedInputStream(url.openStream());
-            int bytesRead = 0;
-            while ((bytesRead = is.read(bytes, 0, bytes.length)) > 0) {
-                out.write(bytes, 0, bytesRead);
-            }
+        try (InputStream is = openStream(url, true)) {
+            transfer(is, out);
             out.flush();
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                if (is != null) is.close();
-            } catch (Exception e) {
-            }
         }
     }
 
@@ -386,32 +375,165 @@ public class RawUtilsCommon {
      * @return
      */
     public String getRedirectedContentStr(URL url) {
-        StringBuilder sb = new StringBuilder();
-        BufferedReader in = null;
         try {
             HttpURLConnection conn = (HttpURLConnection) url.openConnection();
             String newUrl = conn.getHeaderField("Location");   // the random page will redirect us...
             conn.disconnect();
             URL url2 = newUrl != null ? new URL(newUrl) : url;
-
-            in = new BufferedReader(
-                    new InputStreamReader(url2.openStream()));
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                sb.append(inputLine + "\n");
+            try (InputStream in = openStream(url2, true)) {
+                return normalizeLineEnds(readString(in, Charset.defaultCharset()));
             }
-            in.close();
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                if (in != null) in.close();
-            } catch (Exception e) {
+        }
+        return "";
+    }
+
+    /**
+     * Opens the url. If acceptGzip is true, http(s) requests ask for gzip encoding and gzip responses are decompressed transparently.
+     */
+    public static InputStream openStream(URL url, boolean acceptGzip) throws IOException {
+        URLConnection conn = url.openConnection();
+        if (acceptGzip && conn instanceof HttpURLConnection) {
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+        }
+        InputStream in = conn.getInputStream();
+        if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+            in = new GZIPInputStream(in, TRANSFER_BUFFER_SIZE);
+        }
+        return in;
+    }
+
+    /**
+     * Wraps the stream in a GZIPInputStream if it starts with the gzip magic bytes, e.g. for .gz files.
+     */
+    public static InputStream decompressIfGzip(InputStream in) throws IOException {
+        BufferedInputStream bin = in instanceof BufferedInputStream ? (BufferedInputStream) in : new BufferedInputStream(in, TRANSFER_BUFFER_SIZE);
+        bin.mark(2);
+        int b1 = bin.read();
+        int b2 = bin.read();
+        bin.reset();
+        if (b1 == (GZIPInputStream.GZIP_MAGIC & 0xFF) && b2 == (GZIPInputStream.GZIP_MAGIC >>> 8)) {
+            return new GZIPInputStream(bin, TRANSFER_BUFFER_SIZE);
+        }
+        return bin;
+    }
+
+    /**
+     * Copies all bytes from in to out (streams are not closed).<br>
+     * File streams are copied channel-to-channel (FileChannel.transferTo/transferFrom, zero-copy where the OS supports it),
+     * other streams through a large buffer.
+     *
+     * @return number of bytes copied
+     */
+    public static long transfer(InputStream in, OutputStream out) throws IOException {
+        if (in instanceof FileInputStream) {
+            return transfer(((FileInputStream) in).getChannel(), out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : Channels.newChannel(out));
+        }
+        if (out instanceof FileOutputStream) {
+            return transfer(Channels.newChannel(in), ((FileOutputStream) out).getChannel());
+        }
+        byte[] buf = new byte[TRANSFER_BUFFER_SIZE];
+        long total = 0;
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Copies all bytes from in to out (channels are not closed).<br>
+     * Uses FileChannel.transferTo/transferFrom if one side is a file channel, otherwise a direct buffer.
+     * The source channel must be blocking.
+     *
+     * @return number of bytes copied
+     */
+    public static long transfer(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        long total = 0;
+        if (in instanceof FileChannel) {
+            FileChannel fc = (FileChannel) in;
+            long pos = fc.position();
+            long size = fc.size();
+            while (pos < size) {
+                long n = fc.transferTo(pos, size - pos, out);
+                if (n <= 0) break;
+                pos += n;
+                total += n;
             }
+            fc.position(pos);
+            return total;
         }
-        return sb.toString();
+        if (out instanceof FileChannel) {
+            FileChannel fc = (FileChannel) out;
+            long pos = fc.position();
+            long n;
+            while ((n = fc.transferFrom(in, pos, TRANSFER_CHUNK_SIZE)) > 0) {
+                pos += n;
+                total += n;
+            }
+            fc.position(pos);
+            return total;
+        }
+        return transferBuffered(in, out);
     }
 
+    private static long transferBuffered(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+        long total = 0;
+        while (in.read(buf) >= 0) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                total += out.write(buf);
+            }
+            buf.clear();
+        }
+        return total;
+    }
+
+    /**
+     * Reads all bytes of the stream (the stream is not closed).
+     */
+    public static byte[] readBytes(InputStream in) throws IOException {
+        byte[] buf = new byte[TRANSFER_BUFFER_SIZE];
+        int len = 0;
+        int n;
+        while ((n = in.read(buf, len, buf.length - len)) >= 0) {
+            len += n;
+            if (len == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        return len == buf.length ? buf : Arrays.copyOf(buf, len);
+    }
+
+    /**
+     * Reads the whole stream and decodes it in one step (no per-line processing, line ends are kept).
+     */
+    public static String readString(InputStream in, Charset charset) throws IOException {
+        byte[] bytes = readBytes(in);
+        return new String(bytes, 0, bytes.length, charset);
+    }
+
+    /**
+     * Converts \r\n and \r to \n and terminates the last line with \n, like reading the text with BufferedReader.readLine() and appending "\n" to each line.
+     */
+    public static String normalizeLineEnds(String s) {
+        int len = s.length();
+        if (len == 0) return s;
+        if (s.indexOf('\r') < 0) return s.charAt(len - 1) == '\n' ? s : s + "\n";
+        StringBuilder sb = new StringBuilder(len + 1);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c == '\r') {
+                sb.append('\n');
+                if (i + 1 < len && s.charAt(i + 1) == '\n') i++;
+            } else {
+                sb.append(c);
+            }
+        }
+        if (sb.charAt(sb.length() - 1) != '\n') sb.append('\n');
+        return sb.toString();
+    }
 
     public static String packStringList(List<String> strList) {
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,221 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils;
+
+import java.io.Serializable;
+
+/**
+ * Single-pass, mergeable accumulator for count, mean, variance, min, max and sum.<br>
+ * Values are accumulated with Welford's algorithm, partial results (e.g. from different threads or workers)
+ * are combined with {@link #merge(RunningStats)} (Chan et al.). No values are buffered.
+ * <p>
+ * The results follow the semantics of {@link StdStats}: if any added value is NaN all results except count are NaN,
+ * var/stddev are sample statistics (n-1), varp/stddevp population statistics (n).
+ * Infinite values are counted separately (mean and variance are computed over the finite values only): the mean is
+ * +/-infinity if infinite values of one sign were added (NaN for both signs), the variance is NaN.
+ * <p>
+ * Not thread-safe, use one instance per thread and merge them.
+ */
+public class RunningStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private long count = 0;
+    private double mean = 0d;
+    private double m2 = 0d;
+    private double sum = 0d;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private boolean nan = false;
+    private long posInf = 0; // number of +infinity values, not part of mean and m2
+    private long negInf = 0; // number of -infinity values, not part of mean and m2
+
+    public RunningStats() {
+    }
+
+    public RunningStats(RunningStats other) {
+        this.count = other.count;
+        this.mean = other.mean;
+        this.m2 = other.m2;
+        this.sum = other.sum;
+        this.min = other.min;
+        this.max = other.max;
+        this.nan = other.nan;
+        this.posInf = other.posInf;
+        this.negInf = other.negInf;
+    }
+
+    /**
+     * Creates an accumulator containing all values of the array.
+     */
+    public static RunningStats of(double[] a) {
+        RunningStats stats = new RunningStats();
+        stats.addAll(a, 0, a.length);
+        return stats;
+    }
+
+    public void add(double x) {
+        if (x != x) nan = true;
+        count++;
+        if (x == Double.POSITIVE_INFINITY) {
+            posInf++;
+        } else if (x == Double.NEGATIVE_INFINITY) {
+            negInf++;
+        } else {
+            double delta = x - mean;
+            mean += delta / getFiniteCount();
+            m2 += delta * (x - mean);
+        }
+        sum += x;
+        if (x < min) min = x;
+        if (x > max) max = x;
+    }
+
+    public void addAll(double[] a) {
+        addAll(a, 0, a.length);
+    }
+
+    /**
+     * Adds the values a[from..to).
+     */
+    public void addAll(double[] a, int from, int to) {
+        for (int i = from; i < to; i++) {
+            add(a[i]);
+        }
+    }
+
+    public void addAll(int[] a) {
+        for (int i = 0; i < a.length; i++) {
+            add(a[i]);
+        }
+    }
+
+    /**
+     * Merges the other accumulator into this one.
+     *
+     * @return this
+     */
+    public RunningStats merge(RunningStats other) {
+        if (other == null || other.count == 0) return this;
+        long n1 = getFiniteCount();
+        long n2 = other.getFiniteCount();
+        if (n1 == 0) {
+            mean = other.mean;
+            m2 = other.m2;
+        } else if (n2 > 0) {
+            long n = n1 + n2;
+            double delta = other.mean - mean;
+            mean += delta * n2 / n;
+            m2 += other.m2 + delta * delta * ((double) n1 * n2 / n);
+        }
+        count += other.count;
+        posInf += other.posInf;
+        negInf += other.negInf;
+        sum += other.sum;
+        if (other.min < min) min = other.min;
+        if (other.max > max) max = other.max;
+        nan |= other.nan;
+        return this;
+    }
+
+    /**
+     * Returns a new accumulator containing the values of a and b.
+     */
+    public static RunningStats merge(RunningStats a, RunningStats b) {
+        return new RunningStats(a).merge(b);
+    }
+
+    public void clear() {
+        count = 0;
+        mean = 0d;
+        m2 = 0d;
+        sum = 0d;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+        nan = false;
+        posInf = 0;
+        negInf = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    private long getFiniteCount() {
+        return count - posInf - negInf;
+    }
+
+    /**
+     * Returns the average value, NaN if no such value.
+     */
+    public double getMean() {
+        if (count == 0 || nan) return Double.NaN;
+        if (posInf > 0) return negInf > 0 ? Double.NaN : Double.POSITIVE_INFINITY;
+        if (negInf > 0) return Double.NEGATIVE_INFINITY;
+        return mean;
+    }
+
+    /**
+     * Returns the sample variance, NaN if no such value.
+     */
+    public double getVar() {
+        if (count == 0 || nan || posInf > 0 || negInf > 0) return Double.NaN;
+        return m2 / (count - 1);
+    }
+
+    /**
+     * Returns the population variance, NaN if no such value.
+     */
+    public double getVarp() {
+        if (count == 0 || nan || posInf > 0 || negInf > 0) return Double.NaN;
+        return m2 / count;
+    }
+
+    public double getStddev() {
+        return Math.sqrt(getVar());
+    }
+
+    public double getStddevp() {
+        return Math.sqrt(getVarp());
+    }
+
+    /**
+     * Returns the minimum value, +infinity if no such value.
+     */
+    public double getMin() {
+        return nan ? Double.NaN : min;
+    }
+
+    /**
+     * Returns the maximum value, -infinity if no such value.
+     */
+    public double getMax() {
+        return nan ? Double.NaN : max;
+    }
+
+    public double getSum() {
+        return nan ? Double.NaN : sum;
+    }
+
+    @Override
+    public String toString() {
+        return "RunningStats [count=" + count + ", mean=" + getMean() + ", stddev=" + getStddev() + ", min=" + getMin() + ", max=" + getMax() + ", sum=" + getSum() + "]";
+    }
+
+}
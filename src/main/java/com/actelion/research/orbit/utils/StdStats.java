@@ -19,6 +19,9 @@
 
 package com.actelion.research.orbit.utils;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
 /*************************************************************************
  * Compilation:  javac StdStats.java
  * Execution:    java StdStats < input.txt
@@ -67,9 +70,25 @@ package com.actelion.research.orbit.utils;
  */
 public final class StdStats {
 
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 17;
+    private static final int PARALLEL_CHUNK_SIZE = 1 << 16;
+    private static volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
     private StdStats() {
     }
 
+    /**
+     * Arrays with at least this length are split across the common ForkJoin pool by the parallel* methods.
+     */
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    public static void setParallelThreshold(int parallelThreshold) {
+        if (parallelThreshold < 1) throw new IllegalArgumentException("parallelThreshold must be >= 1");
+        StdStats.parallelThreshold = parallelThreshold;
+    }
+
     /**
      * Returns the maximum value in the array a[], -infinity if no such value.
      */
@@ -340,4 +359,178 @@ public final class StdStats {
     }
 
 
-}
\ No newline at end of file
+
+    // bulk variants for large arrays
+
+    /**
+     * Returns the sum of all values in the array a[]. Large arrays are summed in parallel.<br>
+     * The summation order differs from sum(), so the result can differ in the last bits.
+     */
+    public static double parallelSum(double[] a) {
+        if (a.length < parallelThreshold) return sumUnrolled(a, 0, a.length);
+        return ForkJoinPool.commonPool().invoke(new BulkTask(a, 0, a.length, BulkTask.SUM))[0];
+    }
+
+    /**
+     * Returns the average value in the array a[], NaN if no such value. Large arrays are processed in parallel.
+     */
+    public static double parallelMean(double[] a) {
+        if (a.length == 0) return Double.NaN;
+        return parallelSum(a) / a.length;
+    }
+
+    /**
+     * Returns the sample variance in the array a[], NaN if no such value. Large arrays are processed in parallel,
+     * each chunk computes its mean and squared deviations locally and the chunks are combined (Chan et al.).
+     */
+    public static double parallelVar(double[] a) {
+        if (a.length == 0) return Double.NaN;
+        double[] r = a.length < parallelThreshold ? BulkTask.meanM2(a, 0, a.length) : ForkJoinPool.commonPool().invoke(new BulkTask(a, 0, a.length, BulkTask.VAR));
+        return r[1] / (a.length - 1);
+    }
+
+    /**
+     * Returns the sample standard deviation in the array a[], NaN if no such value. Large arrays are processed in parallel.
+     */
+    public static double parallelStddev(double[] a) {
+        return Math.sqrt(parallelVar(a));
+    }
+
+    /**
+     * Returns the minimum value in the array a[], +infinity if no such value, NaN if any value is NaN.
+     * Large arrays are processed in parallel.
+     */
+    public static double parallelMin(double[] a) {
+        if (a.length < parallelThreshold) return minBranchless(a, 0, a.length);
+        return ForkJoinPool.commonPool().invoke(new BulkTask(a, 0, a.length, BulkTask.MIN))[0];
+    }
+
+    /**
+     * Returns the maximum value in the array a[], -infinity if no such value, NaN if any value is NaN.
+     * Large arrays are processed in parallel.
+     */
+    public static double parallelMax(double[] a) {
+        if (a.length < parallelThreshold) return maxBranchless(a, 0, a.length);
+        return ForkJoinPool.commonPool().invoke(new BulkTask(a, 0, a.length, BulkTask.MAX))[0];
+    }
+
+    /**
+     * Sum with four independent accumulators, so the additions do not wait on each other.
+     */
+    static double sumUnrolled(double[] a, int from, int to) {
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            s0 += a[i];
+            s1 += a[i + 1];
+            s2 += a[i + 2];
+            s3 += a[i + 3];
+        }
+        for (; i < to; i++) {
+            s0 += a[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Min without a NaN check per element: Math.min propagates NaN, which keeps the semantics of min()
+     * and gives the JIT a loop it can vectorize. Unlike min(), -0.0 is considered smaller than 0.0.
+     */
+    static double minBranchless(double[] a, int from, int to) {
+        double min = Double.POSITIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+            min = Math.min(min, a[i]);
+        }
+        return min;
+    }
+
+    /**
+     * Max without a NaN check per element, see minBranchless().
+     */
+    static double maxBranchless(double[] a, int from, int to) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+            max = Math.max(max, a[i]);
+        }
+        return max;
+    }
+
+    private static final class BulkTask extends RecursiveTask<double[]> {
+        private static final long serialVersionUID = 1L;
+        static final int SUM = 0;
+        static final int MIN = 1;
+        static final int MAX = 2;
+        static final int VAR = 3;
+
+        private final double[] a;
+        private final int from;
+        private final int to;
+        private final int op;
+
+        BulkTask(double[] a, int from, int to, int op) {
+            this.a = a;
+            this.from = from;
+            this.to = to;
+            this.op = op;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (to - from <= PARALLEL_CHUNK_SIZE) {
+                switch (op) {
+                    case SUM:
+                        return new double[]{sumUnrolled(a, from, to)};
+                    case MIN:
+                        return new double[]{minBranchless(a, from, to)};
+                    case MAX:
+                        return new double[]{maxBranchless(a, from, to)};
+                    default:
+                        return meanM2(a, from, to);
+                }
+            }
+            int mid = (from + to) >>> 1;
+            BulkTask left = new BulkTask(a, from, mid, op);
+            BulkTask right = new BulkTask(a, mid, to, op);
+            left.fork();
+            double[] r = right.compute();
+            double[] l = left.join();
+            switch (op) {
+                case SUM:
+                    return new double[]{l[0] + r[0]};
+                case MIN:
+                    return new double[]{Math.min(l[0], r[0])};
+                case MAX:
+                    return new double[]{Math.max(l[0], r[0])};
+                default:
+                    double nl = mid - from;
+                    double nr = to - mid;
+                    double delta = r[0] - l[0];
+                    double n = nl + nr;
+                    return new double[]{l[0] + delta * nr / n, l[1] + r[1] + delta * delta * nl * nr / n};
+            }
+        }
+
+        /**
+         * Returns {mean, sum of squared deviations} of a[from..to).
+         */
+        static double[] meanM2(double[] a, int from, int to) {
+            int n = to - from;
+            double mean = sumUnrolled(a, from, to) / n;
+            double m0 = 0.0, m1 = 0.0;
+            int i = from;
+            for (; i + 1 < to; i += 2) {
+                double d0 = a[i] - mean;
+                double d1 = a[i + 1] - mean;
+                m0 += d0 * d0;
+                m1 += d1 * d1;
+            }
+            for (; i < to; i++) {
+                double d = a[i] - mean;
+                m0 += d * d;
+            }
+            return new double[]{mean, m0 + m1};
+        }
+    }
+
+
+}
@@ -0,0 +1,163 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils.parser;
+
+/**
+ * Parses numbers directly from char buffers without creating intermediate strings.<br>
+ * Invalid input returns the given default value instead of throwing an exception.
+ * Doubles use an exact fast path for up to 15 significant digits and powers of ten up to 22,
+ * all other representations fall back to Double.parseDouble() and therefore give identical results.
+ */
+public final class CharNumberParser {
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private CharNumberParser() {
+    }
+
+    /**
+     * Parses an int in buf[start..end), returns defaultValue if the chars are not a valid int.
+     */
+    public static int parseInt(char[] buf, int start, int end, int defaultValue) {
+        long l = parseLong(buf, start, end, Long.MIN_VALUE);
+        if (l == Long.MIN_VALUE || l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) return defaultValue;
+        return (int) l;
+    }
+
+    /**
+     * Parses a long in buf[start..end), returns defaultValue if the chars are not a valid long.
+     * Long.MIN_VALUE itself is not supported and returns defaultValue.
+     */
+    public static long parseLong(char[] buf, int start, int end, long defaultValue) {
+        while (start < end && buf[start] <= ' ') start++;
+        while (end > start && buf[end - 1] <= ' ') end--;
+        if (start >= end) return defaultValue;
+        boolean negative = false;
+        char c = buf[start];
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            start++;
+            if (start >= end) return defaultValue;
+        }
+        if (end - start > 18) return defaultValue; // might overflow
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) return defaultValue;
+            result = result * 10 + d;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Parses a double in buf[start..end), returns defaultValue if the chars are empty or not a valid double.
+     */
+    public static double parseDouble(char[] buf, int start, int end, double defaultValue) {
+        while (start < end && buf[start] <= ' ') start++;
+        while (end > start && buf[end - 1] <= ' ') end--;
+        if (start >= end) return defaultValue;
+
+        int i = start;
+        boolean negative = false;
+        if (buf[i] == '-' || buf[i] == '+') {
+            negative = buf[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exp10 = 0;
+        boolean anyDigit = false;
+        boolean exact = true;
+        // integer part
+        for (; i < end; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) break;
+            anyDigit = true;
+            if (mantissa == 0 && d == 0) continue; // leading zeros
+            if (digits < 18) {
+                mantissa = mantissa * 10 + d;
+                digits++;
+            } else {
+                exact = false;
+                exp10++;
+            }
+        }
+        // fraction
+        if (i < end && buf[i] == '.') {
+            i++;
+            for (; i < end; i++) {
+                int d = buf[i] - '0';
+                if (d < 0 || d > 9) break;
+                anyDigit = true;
+                if (mantissa == 0 && d == 0) {
+                    exp10--;
+                    continue;
+                }
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + d;
+                    digits++;
+                    exp10--;
+                } else if (d != 0) {
+                    exact = false;
+                }
+            }
+        }
+        if (!anyDigit) return parseDoubleSlow(buf, start, end, defaultValue); // e.g. NaN, Infinity
+        // exponent
+        if (i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+            i++;
+            boolean expNegative = false;
+            if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+                expNegative = buf[i] == '-';
+                i++;
+            }
+            int expStart = i;
+            int exp = 0;
+            for (; i < end; i++) {
+                int d = buf[i] - '0';
+                if (d < 0 || d > 9) break;
+                if (exp < 100000) exp = exp * 10 + d;
+            }
+            if (i == expStart) return defaultValue;
+            exp10 += expNegative ? -exp : exp;
+        }
+        if (i != end) return parseDoubleSlow(buf, start, end, defaultValue); // e.g. hex or type suffix
+        if (mantissa == 0) return negative ? -0d : 0d;
+        if (!exact || mantissa > MAX_EXACT_MANTISSA || exp10 < -22 || exp10 > 22) {
+            return parseDoubleSlow(buf, start, end, defaultValue);
+        }
+        // both mantissa and 10^exp are exact doubles, so one multiplication/division is correctly rounded
+        double d = exp10 >= 0 ? mantissa * POW10[exp10] : mantissa / POW10[-exp10];
+        return negative ? -d : d;
+    }
+
+    private static double parseDoubleSlow(char[] buf, int start, int end, double defaultValue) {
+        try {
+            return Double.parseDouble(new String(buf, start, end - start));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils.parser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Byte offsets of the containers in a dose response file.<br>
+ * The index is built by scanning the bytes for line ends and the first column only (no row parsing), so single containers can be
+ * read without parsing the whole file and large files can be split at container boundaries for parallel parsing.
+ * The file must use an ASCII compatible encoding (e.g. UTF-8).
+ */
+public class DoseResponseIndex {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] HEADER_TOKEN = "ContainerName".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Location of one container (a block of consecutive lines with the same container name).
+     */
+    public static final class Entry {
+        private final String containerName;
+        private final long offset;
+        private final long length;
+        private final int numRows;
+
+        Entry(String containerName, long offset, long length, int numRows) {
+            this.containerName = containerName;
+            this.offset = offset;
+            this.length = length;
+            this.numRows = numRows;
+        }
+
+        public String getContainerName() {
+            return containerName;
+        }
+
+        /**
+         * Byte offset of the first row.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Length in bytes of all rows (including line terminators).
+         */
+        public long getLength() {
+            return length;
+        }
+
+        public int getNumRows() {
+            return numRows;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [containerName=" + containerName + ", offset=" + offset + ", length=" + length + ", numRows=" + numRows + "]";
+        }
+    }
+
+    private final List<Entry> entries;
+    private final long fileLength;
+    private final long lastModified;
+
+    private DoseResponseIndex(List<Entry> entries, long fileLength, long lastModified) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.fileLength = fileLength;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Scans the file and returns the index of its containers.
+     *
+     * @throws ParseException if the file has no header line (containing 'ContainerName')
+     */
+    public static DoseResponseIndex build(File file) throws IOException, ParseException {
+        long lastModified = file.lastModified();
+        try (InputStream in = new FileInputStream(file)) {
+            Scanner scanner = new Scanner();
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                scanner.scan(buf, n);
+            }
+            scanner.finish();
+            if (!scanner.headerFound) throw new ParseException("no dose response header found in " + file.getName(), 0);
+            return new DoseResponseIndex(scanner.entries, scanner.position, lastModified);
+        }
+    }
+
+    /**
+     * Returns true if the file has not been modified since the index was built.
+     */
+    public boolean isValidFor(File file) {
+        return file.length() == fileLength && file.lastModified() == lastModified;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public Entry getEntry(int containerNum) {
+        return entries.get(containerNum);
+    }
+
+    public int getNumContainers() {
+        return entries.size();
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * Splits the containers into consecutive groups of roughly maxBytes bytes (a group contains at least one container).
+     */
+    public List<List<Entry>> split(long maxBytes) {
+        List<List<Entry>> chunks = new ArrayList<List<Entry>>();
+        List<Entry> chunk = new ArrayList<Entry>();
+        long size = 0;
+        for (Entry entry : entries) {
+            if (!chunk.isEmpty() && size + entry.length > maxBytes) {
+                chunks.add(chunk);
+                chunk = new ArrayList<Entry>();
+                size = 0;
+            }
+            chunk.add(entry);
+            size += entry.length;
+        }
+        if (!chunk.isEmpty()) chunks.add(chunk);
+        return chunks;
+    }
+
+    /**
+     * Line state machine over the file bytes. Before the header only the header token is searched, afterwards only the first
+     * column of each line is collected.
+     */
+    private static final class Scanner {
+        private final List<Entry> entries = new ArrayList<Entry>();
+        private long position = 0;
+        private boolean headerFound = false;
+        private int headerMatch = 0;
+
+        private long lineStart = 0;
+        private byte[] name = new byte[64];
+        private int nameLength = 0;
+        private boolean inFirstColumn = true;
+        private boolean emptyLine = true;
+
+        private byte[] currentName = null;
+        private long currentOffset;
+        private int currentRows;
+
+        void scan(byte[] buf, int n) {
+            for (int i = 0; i < n; i++, position++) {
+                byte b = buf[i];
+                if (b == '\n') {
+                    endLine(position + 1);
+                    continue;
+                }
+                if (!headerFound) {
+                    if (headerMatch < HEADER_TOKEN.length) {
+                        headerMatch = b == HEADER_TOKEN[headerMatch] ? headerMatch + 1 : (b == HEADER_TOKEN[0] ? 1 : 0);
+                    }
+                    continue;
+                }
+                if (b != '\r') emptyLine = false;
+                if (inFirstColumn) {
+                    if (b == '\t') {
+                        inFirstColumn = false;
+                    } else {
+                        if (nameLength == name.length) name = Arrays.copyOf(name, nameLength * 2);
+                        name[nameLength++] = b;
+                    }
+                }
+            }
+        }
+
+        void finish() {
+            if (position > lineStart) endLine(position);
+            closeContainer(position);
+        }
+
+        private void endLine(long nextLineStart) {
+            if (!headerFound) {
+                headerFound = headerMatch == HEADER_TOKEN.length;
+            } else if (!emptyLine) {
+                int len = nameLength;
+                if (inFirstColumn && len > 0 && name[len - 1] == '\r') len--;
+                if (currentName == null || !equals(currentName, name, len)) {
+                    closeContainer(lineStart);
+                    currentName = Arrays.copyOf(name, len);
+                    currentOffset = lineStart;
+                    currentRows = 0;
+                }
+                currentRows++;
+            }
+            lineStart = nextLineStart;
+            nameLength = 0;
+            inFirstColumn = true;
+            emptyLine = true;
+            headerMatch = 0;
+        }
+
+        private void closeContainer(long end) {
+            if (currentName == null) return;
+            entries.add(new Entry(new String(currentName, StandardCharsets.UTF_8), currentOffset, end - currentOffset, currentRows));
+            currentName = null;
+        }
+
+        private static boolean equals(byte[] a, byte[] b, int len) {
+            if (a.length != len) return false;
+            for (int i = 0; i < len; i++) {
+                if (a[i] != b[i]) return false;
+            }
+            return true;
+        }
+    }
+
+}
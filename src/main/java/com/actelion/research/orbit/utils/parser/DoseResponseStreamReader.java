@@ -0,0 +1,306 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils.parser;
+
+import com.actelion.research.orbit.beans.DoseResponseContainer;
+import com.actelion.research.orbit.beans.DoseResponseRow;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Streaming reader for dose response data in the Orbit dose response format (as written by DoseResponseContainer.getDataAsString()).<br>
+ * Rows are parsed directly from the char buffer (numbers via CharNumberParser, no exceptions for invalid optional values) and
+ * a DoseResponseContainer is emitted as soon as the container name changes, so only one container is held in memory at a time
+ * when the containers are consumed via {@link #nextContainer()} or {@link #forEachContainer(IDoseResponseContainerHandler)}.
+ * <p>
+ * Empty lines are skipped. Not thread-safe.
+ */
+public class DoseResponseStreamReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int NUM_COLUMNS = 14;
+    private static final int MIN_COLUMNS = 13;
+    private static final String HEADER_TOKEN = "ContainerName";
+
+    /**
+     * Callback for container-wise processing.
+     */
+    public interface IDoseResponseContainerHandler {
+        void handleContainer(DoseResponseContainer container) throws Exception;
+    }
+
+    private final Reader reader;
+    private final Date referenceDate;
+    private final String plateFormat;
+    private char[] buf = new char[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    private int lineStart;
+    private int lineEnd;
+    private long lineNumber = 0;
+    private final int[] fieldStart = new int[NUM_COLUMNS];
+    private final int[] fieldEnd = new int[NUM_COLUMNS];
+    private int numFields = 0;
+    private boolean headerChecked;
+    private DoseResponseRow pendingRow = null;
+
+    // previous strings, reused if the next row has the same value
+    private String containerName = "";
+    private String wellType = "";
+    private String compoundType = "";
+    private String group = "";
+    private String measurementName = "";
+
+    /**
+     * @param reader        the data
+     * @param referenceDate reference date of the created containers (e.g. the last modified date of the file)
+     * @param plateFormat   plate format of the created containers, e.g. RawUtilsCommon.PlateFormat_384
+     * @param hasHeader     if true, all lines up to and including the header line (containing 'ContainerName') are skipped
+     */
+    public DoseResponseStreamReader(Reader reader, Date referenceDate, String plateFormat, boolean hasHeader) {
+        this.reader = reader;
+        this.referenceDate = referenceDate;
+        this.plateFormat = plateFormat;
+        this.headerChecked = !hasHeader;
+    }
+
+    public DoseResponseStreamReader(InputStream inputStream, Charset charset, Date referenceDate, String plateFormat, boolean hasHeader) {
+        this(new InputStreamReader(inputStream, charset), referenceDate, plateFormat, hasHeader);
+    }
+
+    public DoseResponseStreamReader(InputStream inputStream, Date referenceDate, String plateFormat) {
+        this(inputStream, StandardCharsets.UTF_8, referenceDate, plateFormat, true);
+    }
+
+    /**
+     * Returns the next complete container or null if there are no more rows.
+     */
+    public DoseResponseContainer nextContainer() throws IOException, ParseException {
+        DoseResponseRow row = pendingRow != null ? pendingRow : nextRow();
+        pendingRow = null;
+        if (row == null) return null;
+        List<DoseResponseRow> rows = new ArrayList<DoseResponseRow>();
+        rows.add(row);
+        String name = row.getContainerName();
+        while ((row = nextRow()) != null) {
+            if (!name.equals(row.getContainerName())) {
+                pendingRow = row;
+                break;
+            }
+            rows.add(row);
+        }
+        return new DoseResponseContainer(name, referenceDate, rows, plateFormat);
+    }
+
+    /**
+     * Calls the handler for each remaining container as soon as it is complete.
+     *
+     * @return number of containers processed
+     */
+    public int forEachContainer(IDoseResponseContainerHandler handler) throws Exception {
+        int cnt = 0;
+        DoseResponseContainer container;
+        while ((container = nextContainer()) != null) {
+            handler.handleContainer(container);
+            cnt++;
+        }
+        return cnt;
+    }
+
+    /**
+     * Reads all remaining containers.
+     */
+    public List<DoseResponseContainer> readAll() throws IOException, ParseException {
+        List<DoseResponseContainer> containers = new ArrayList<DoseResponseContainer>();
+        DoseResponseContainer container;
+        while ((container = nextContainer()) != null) {
+            containers.add(container);
+        }
+        return containers;
+    }
+
+    /**
+     * Parses the next data row.
+     *
+     * @return the next row or null if there are no more rows
+     */
+    public DoseResponseRow nextRow() throws IOException, ParseException {
+        if (pendingRow != null) {
+            DoseResponseRow row = pendingRow;
+            pendingRow = null;
+            return row;
+        }
+        if (!headerChecked) {
+            skipHeader();
+        }
+        do {
+            if (!nextLine()) return null;
+        } while (lineStart == lineEnd);
+        return parseRow();
+    }
+
+    private void skipHeader() throws IOException, ParseException {
+        headerChecked = true;
+        while (nextLine()) {
+            if (contains(lineStart, lineEnd, HEADER_TOKEN)) return;
+        }
+        throw new ParseException("no dose response header (" + HEADER_TOKEN + ") found", 0);
+    }
+
+    private DoseResponseRow parseRow() throws ParseException {
+        splitFields();
+        if (numFields < MIN_COLUMNS) {
+            throw new ParseException("line " + lineNumber + " is not a valid DoseResponseRow (length<" + MIN_COLUMNS + ")", 0);
+        }
+        containerName = reuseString(containerName, 0);
+        wellType = reuseString(wellType, 2);
+        compoundType = reuseString(compoundType, 6);
+        group = reuseString(group, 11);
+        measurementName = reuseString(measurementName, 12);
+        int compoundId = CharNumberParser.parseInt(buf, fieldStart[5], fieldEnd[5], 0);
+        int substanceNo = CharNumberParser.parseInt(buf, fieldStart[7], fieldEnd[7], -1);
+        int replicateNo = CharNumberParser.parseInt(buf, fieldStart[8], fieldEnd[8], 0);
+        double concentration = parseRequiredDouble(9);
+        double concentrationFactor = parseRequiredDouble(10);
+        double measurementValue = numFields > 13 ? CharNumberParser.parseDouble(buf, fieldStart[13], fieldEnd[13], Double.NaN) : Double.NaN;
+        return new DoseResponseRow(containerName, field(1), wellType, field(3), field(4), compoundId, compoundType, substanceNo, replicateNo,
+                concentration, concentrationFactor, group, measurementName, measurementValue);
+    }
+
+    private double parseRequiredDouble(int f) throws ParseException {
+        double d = CharNumberParser.parseDouble(buf, fieldStart[f], fieldEnd[f], Double.NaN);
+        if (Double.isNaN(d) && !contains(fieldStart[f], fieldEnd[f], "NaN")) {
+            throw new ParseException("line " + lineNumber + ": invalid value in column " + (f + 1) + ": " + field(f), fieldStart[f] - lineStart);
+        }
+        return d;
+    }
+
+    private String field(int f) {
+        return new String(buf, fieldStart[f], fieldEnd[f] - fieldStart[f]);
+    }
+
+    /**
+     * Returns old if it has the same chars as the field (these values usually repeat), otherwise a new string.
+     */
+    private String reuseString(String old, int f) {
+        int len = fieldEnd[f] - fieldStart[f];
+        if (old.length() == len) {
+            int s = fieldStart[f];
+            boolean same = true;
+            for (int i = 0; i < len; i++) {
+                if (old.charAt(i) != buf[s + i]) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) return old;
+        }
+        return field(f);
+    }
+
+    private boolean contains(int s, int e, String token) {
+        int n = token.length();
+        for (int i = s; i <= e - n; i++) {
+            int j = 0;
+            while (j < n && buf[i + j] == token.charAt(j)) j++;
+            if (j == n) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Splits the current line into the first NUM_COLUMNS fields, additional columns are ignored.
+     */
+    private void splitFields() {
+        numFields = 0;
+        int s = lineStart;
+        for (int i = lineStart; i <= lineEnd && numFields < NUM_COLUMNS; i++) {
+            if (i == lineEnd || buf[i] == DoseResponseRow.DoseResponseSeparator) {
+                fieldStart[numFields] = s;
+                fieldEnd[numFields] = i;
+                numFields++;
+                s = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Positions lineStart/lineEnd on the next line (without line terminator).
+     *
+     * @return false at end of stream
+     */
+    private boolean nextLine() throws IOException {
+        int scan = pos;
+        while (true) {
+            for (int i = scan; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    lineStart = pos;
+                    lineEnd = (i > pos && buf[i - 1] == '\r') ? i - 1 : i;
+                    pos = i + 1;
+                    lineNumber++;
+                    return true;
+                }
+            }
+            if (eof) {
+                if (pos >= limit) return false;
+                lineStart = pos;
+                lineEnd = (buf[limit - 1] == '\r') ? limit - 1 : limit;
+                pos = limit;
+                lineNumber++;
+                return true;
+            }
+            // compact and fill
+            int remaining = limit - pos;
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, remaining);
+            } else if (remaining == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2); // line longer than buffer
+            }
+            pos = 0;
+            limit = remaining;
+            scan = remaining;
+            int n = reader.read(buf, limit, buf.length - limit);
+            if (n < 0) eof = true;
+            else limit += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+}
@@ -0,0 +1,386 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils.parser;
+
+import com.actelion.research.orbit.beans.HCSColumnarContainer;
+import com.actelion.research.orbit.beans.HCSContainer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Reads the binary Orbit HCS format written by {@link HCSBinaryWriter}.<br>
+ * Only the header is parsed when the file is opened. Columns are memory-mapped on demand, so a single value column
+ * can be scanned without loading the rest of the file.
+ * The returned buffers are read-only views of the file and stay valid after close().
+ */
+public class HCSBinaryReader implements Closeable {
+
+    private static final int OBJECT_ID_WINDOW = 64 * 1024 * 1024;
+    private static final int HEADER_READ_SIZE = 64 * 1024;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int numRows;
+    private final int numValueColumns;
+    private final String containerName;
+    private final Date referenceDate;
+    private final String plateFormat;
+    private final int iPlateBatch;
+    private final String sConcentration;
+    private final String sPipelineName;
+    private final List<String> header;
+    private final List<String> containerNames;
+    private final List<String> wellNames;
+    private final long columnsOffset;
+
+    public HCSBinaryReader(File file) throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        try {
+            channel = raf.getChannel();
+            ByteBuffer headerBuf = readHeader();
+            if (headerBuf.remaining() < 16 || headerBuf.getInt() != HCSBinaryWriter.MAGIC) {
+                throw new IOException(file.getName() + " is not a binary Orbit HCS file");
+            }
+            int version = headerBuf.getInt();
+            if (version > HCSBinaryWriter.VERSION) {
+                throw new IOException("unsupported binary Orbit HCS version " + version + " in " + file.getName());
+            }
+            numRows = headerBuf.getInt();
+            numValueColumns = headerBuf.getInt();
+            containerName = getString(headerBuf);
+            referenceDate = new Date(headerBuf.getLong());
+            plateFormat = getString(headerBuf);
+            iPlateBatch = headerBuf.getInt();
+            sConcentration = getString(headerBuf);
+            sPipelineName = getString(headerBuf);
+            header = getStrings(headerBuf);
+            containerNames = getStrings(headerBuf);
+            wellNames = getStrings(headerBuf);
+            columnsOffset = (headerBuf.position() + 7L) & ~7L;
+        } catch (BufferUnderflowException e) {
+            raf.close();
+            throw new IOException(file.getName() + " is truncated (incomplete header)", e);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the beginning of the file which contains the (variable length) header, starting with HEADER_READ_SIZE bytes
+     * and doubling the size until the header is complete or the end of the file is reached.
+     */
+    private ByteBuffer readHeader() throws IOException {
+        long fileSize = channel.size();
+        long maxLength = Math.min(fileSize, Integer.MAX_VALUE);
+        int length = (int) Math.min(maxLength, HEADER_READ_SIZE);
+        while (true) {
+            ByteBuffer buf = ByteBuffer.allocate(length).order(HCSBinaryWriter.BYTE_ORDER);
+            while (buf.hasRemaining() && channel.read(buf, buf.position()) > 0) {
+                // read until the buffer is full
+            }
+            buf.flip();
+            if (length >= maxLength || isHeaderComplete(buf.duplicate().order(HCSBinaryWriter.BYTE_ORDER))) return buf;
+            length = (int) Math.min(maxLength, length * 2L);
+        }
+    }
+
+    /**
+     * Walks over the header fields without decoding them.
+     *
+     * @return false if the buffer ends within the header (true for files which are no binary Orbit HCS files)
+     */
+    private static boolean isHeaderComplete(ByteBuffer buf) {
+        try {
+            if (buf.remaining() < 16 || buf.getInt() != HCSBinaryWriter.MAGIC) return true;
+            buf.position(16);
+            skipString(buf); // container name
+            buf.getLong();   // reference date
+            skipString(buf); // plate format
+            buf.getInt();    // plate batch
+            skipString(buf); // concentration
+            skipString(buf); // pipeline name
+            for (int list = 0; list < 3; list++) { // header, container names, well names
+                int n = buf.getInt();
+                for (int i = 0; i < n; i++) {
+                    skipString(buf);
+                }
+            }
+            return true;
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+    }
+
+    private static void skipString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len <= 0) return;
+        if (len > buf.remaining()) throw new BufferUnderflowException();
+        buf.position(buf.position() + len);
+    }
+
+    // column layout: containerIdx, wellIdx, siteX, siteY, siteZ, objectX, objectY, time, values..., objectIds
+
+    private long intColumn(int i) {
+        return columnsOffset + i * HCSBinaryWriter.intColumnSize(numRows);
+    }
+
+    private long siteZOffset() {
+        return intColumn(4);
+    }
+
+    private long objectXOffset() {
+        return siteZOffset() + numRows * 8L;
+    }
+
+    private long timeOffset() {
+        return objectXOffset() + 2 * HCSBinaryWriter.intColumnSize(numRows);
+    }
+
+    private long valueColumnOffset(int c) {
+        return timeOffset() + numRows * 8L + c * (numRows * 8L);
+    }
+
+    private ByteBuffer map(long offset, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, size).order(HCSBinaryWriter.BYTE_ORDER);
+    }
+
+    /**
+     * Returns a memory-mapped view of the value column.
+     */
+    public DoubleBuffer getValueColumn(int column) throws IOException {
+        if (column < 0 || column >= numValueColumns) throw new IndexOutOfBoundsException("value column " + column + " (numValueColumns=" + numValueColumns + ")");
+        return map(valueColumnOffset(column), numRows * 8L).asDoubleBuffer();
+    }
+
+    /**
+     * Returns a memory-mapped view of the value column with the given name or null if there is no such column.
+     */
+    public DoubleBuffer getValueColumn(String valueName) throws IOException {
+        int idx = header.indexOf(valueName) - HCSContainer.NumHeaderColumns;
+        if (idx < 0) return null;
+        return getValueColumn(idx);
+    }
+
+    /**
+     * Copies the value column into a new array.
+     */
+    public double[] readValueColumn(int column) throws IOException {
+        double[] values = new double[numRows];
+        getValueColumn(column).get(values);
+        return values;
+    }
+
+    public IntBuffer getContainerNameIdx() throws IOException {
+        return map(intColumn(0), numRows * 4L).asIntBuffer();
+    }
+
+    public IntBuffer getWellNameIdx() throws IOException {
+        return map(intColumn(1), numRows * 4L).asIntBuffer();
+    }
+
+    public IntBuffer getSiteX() throws IOException {
+        return map(intColumn(2), numRows * 4L).asIntBuffer();
+    }
+
+    public IntBuffer getSiteY() throws IOException {
+        return map(intColumn(3), numRows * 4L).asIntBuffer();
+    }
+
+    public DoubleBuffer getSiteZ() throws IOException {
+        return map(siteZOffset(), numRows * 8L).asDoubleBuffer();
+    }
+
+    public IntBuffer getObjectX() throws IOException {
+        return map(objectXOffset(), numRows * 4L).asIntBuffer();
+    }
+
+    public IntBuffer getObjectY() throws IOException {
+        return map(objectXOffset() + HCSBinaryWriter.intColumnSize(numRows), numRows * 4L).asIntBuffer();
+    }
+
+    public LongBuffer getTime() throws IOException {
+        return map(timeOffset(), numRows * 8L).asLongBuffer();
+    }
+
+    /**
+     * Reads the (variable length) object ids. The ids are mapped in windows of OBJECT_ID_WINDOW bytes,
+     * because a single mapping is limited to 2GB.
+     */
+    public String[] readObjectIds() throws IOException {
+        long pos = valueColumnOffset(numValueColumns); // file position of buf
+        ByteBuffer buf = mapWindow(pos, 0);
+        String[] ids = new String[numRows];
+        for (int r = 0; r < numRows; r++) {
+            if (buf.remaining() < 4) {
+                pos += buf.position();
+                buf = mapWindow(pos, 4);
+            }
+            long needed = 4L + Math.max(0, buf.getInt(buf.position()));
+            if (buf.remaining() < needed) {
+                pos += buf.position();
+                buf = mapWindow(pos, needed);
+            }
+            ids[r] = getString(buf);
+        }
+        return ids;
+    }
+
+    /**
+     * Maps OBJECT_ID_WINDOW bytes (at least minBytes) at the given position or up to the end of the file.
+     */
+    private ByteBuffer mapWindow(long pos, long minBytes) throws IOException {
+        long size = Math.min(channel.size() - pos, Math.max(OBJECT_ID_WINDOW, minBytes));
+        if (size < minBytes || minBytes > Integer.MAX_VALUE) {
+            throw new IOException("binary Orbit HCS file is truncated or corrupt at position " + pos);
+        }
+        return map(pos, size);
+    }
+
+    /**
+     * Loads the whole file into a columnar container.
+     */
+    public HCSColumnarContainer toColumnarContainer() throws IOException {
+        HCSColumnarContainer container = new HCSColumnarContainer(numValueColumns, numRows);
+        container.setContainerName(containerName);
+        container.setReferenceDate(referenceDate);
+        container.setHeader(new ArrayList<String>(header));
+        container.setPlateFormat(plateFormat);
+        container.setiPlateBatch(iPlateBatch);
+        container.setsConcentration(sConcentration);
+        container.setsPipelineName(sPipelineName);
+
+        IntBuffer containerIdx = getContainerNameIdx();
+        IntBuffer wellIdx = getWellNameIdx();
+        IntBuffer siteX = getSiteX();
+        IntBuffer siteY = getSiteY();
+        DoubleBuffer siteZ = getSiteZ();
+        IntBuffer objectX = getObjectX();
+        IntBuffer objectY = getObjectY();
+        LongBuffer time = getTime();
+        DoubleBuffer[] columns = new DoubleBuffer[numValueColumns];
+        for (int c = 0; c < numValueColumns; c++) {
+            columns[c] = getValueColumn(c);
+        }
+        String[] objectIds = readObjectIds();
+        double[] values = new double[numValueColumns];
+        for (int r = 0; r < numRows; r++) {
+            for (int c = 0; c < numValueColumns; c++) {
+                values[c] = columns[c].get(r);
+            }
+            container.addRow(containerNames.get(containerIdx.get(r)), wellNames.get(wellIdx.get(r)), siteX.get(r), siteY.get(r), siteZ.get(r), objectIds[r],
+                    objectX.get(r), objectY.get(r), time.get(r), values, numValueColumns);
+        }
+        return container;
+    }
+
+    /**
+     * Loads the whole file into a (row based) HCSContainer.
+     */
+    public HCSContainer toHCSContainer() throws IOException {
+        return toColumnarContainer().toHCSContainer();
+    }
+
+    private static List<String> getStrings(ByteBuffer buf) {
+        int n = buf.getInt();
+        List<String> list = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++) {
+            list.add(getString(buf));
+        }
+        return list;
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) return null;
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getNumValueColumns() {
+        return numValueColumns;
+    }
+
+    public String getContainerName() {
+        return containerName;
+    }
+
+    public Date getReferenceDate() {
+        return referenceDate;
+    }
+
+    public String getPlateFormat() {
+        return plateFormat;
+    }
+
+    public int getiPlateBatch() {
+        return iPlateBatch;
+    }
+
+    public String getsConcentration() {
+        return sConcentration;
+    }
+
+    public String getsPipelineName() {
+        return sPipelineName;
+    }
+
+    public List<String> getHeader() {
+        return Collections.unmodifiableList(header);
+    }
+
+    public List<String> getValueNames() {
+        if (header.size() <= HCSContainer.NumHeaderColumns) return Collections.emptyList();
+        return Collections.unmodifiableList(header.subList(HCSContainer.NumHeaderColumns, header.size()));
+    }
+
+    public List<String> getContainerNames() {
+        return Collections.unmodifiableList(containerNames);
+    }
+
+    public List<String> getWellNames() {
+        return Collections.unmodifiableList(wellNames);
+    }
+
+}
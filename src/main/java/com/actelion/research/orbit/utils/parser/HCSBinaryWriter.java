@@ -0,0 +1,202 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils.parser;
+
+import com.actelion.research.orbit.beans.HCSColumnarContainer;
+import com.actelion.research.orbit.beans.HCSContainer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes HCS results in the compact binary Orbit HCS format.<br>
+ * Layout (little endian):
+ * <ul>
+ * <li>magic 'OHCB', version, numRows, numValueColumns</li>
+ * <li>container meta data (name, reference date, plate format, plate batch, concentration, pipeline name)</li>
+ * <li>header column names, container name dictionary, well name dictionary</li>
+ * <li>padding to 8 bytes, then the fixed-width columns: container name codes, well name codes, siteX, siteY, siteZ, objectX, objectY, time, value columns</li>
+ * <li>object ids (length prefixed UTF-8)</li>
+ * </ul>
+ * Columns are written through a small direct buffer, so no copy of the data is created in heap.
+ *
+ * @see HCSBinaryReader
+ */
+public class HCSBinaryWriter {
+
+    public static final int MAGIC = 0x4F484342; // OHCB
+    public static final int VERSION = 1;
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private HCSBinaryWriter() {
+    }
+
+    public static void write(HCSContainer container, File file) throws IOException {
+        write(HCSColumnarContainer.fromHCSContainer(container), file);
+    }
+
+    public static void write(HCSColumnarContainer container, File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            write(container, raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the container to the channel, which must be positioned at 0 (the reader expects the data at the start of the file
+     * and the column alignment is relative to it).
+     */
+    public static void write(HCSColumnarContainer container, FileChannel channel) throws IOException {
+        if (channel.position() != 0) {
+            throw new IllegalArgumentException("binary Orbit HCS data must be written at position 0 (channel position is " + channel.position() + ")");
+        }
+        final int numRows = container.getNumRows();
+        final int numValueColumns = container.getNumValueColumns();
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(BYTE_ORDER);
+
+        // header section
+        buf.putInt(MAGIC);
+        buf.putInt(VERSION);
+        buf.putInt(numRows);
+        buf.putInt(numValueColumns);
+        putString(channel, buf, container.getContainerName());
+        ensure(channel, buf, 8);
+        buf.putLong(container.getReferenceDate() != null ? container.getReferenceDate().getTime() : 0L);
+        putString(channel, buf, container.getPlateFormat());
+        ensure(channel, buf, 4);
+        buf.putInt(container.getiPlateBatch());
+        putString(channel, buf, container.getsConcentration());
+        putString(channel, buf, container.getsPipelineName());
+        putStrings(channel, buf, container.getHeader());
+        putStrings(channel, buf, container.getContainerNames());
+        putStrings(channel, buf, container.getWellNames());
+        // align columns to 8 bytes
+        long pos = channel.position() + buf.position();
+        int pad = (int) ((8 - (pos % 8)) % 8);
+        ensure(channel, buf, pad);
+        for (int i = 0; i < pad; i++) buf.put((byte) 0);
+
+        // fixed-width columns
+        putInts(channel, buf, container.getContainerNameIdx(), numRows);
+        putInts(channel, buf, container.getWellNameIdx(), numRows);
+        putInts(channel, buf, container.getSiteX(), numRows);
+        putInts(channel, buf, container.getSiteY(), numRows);
+        putDoubles(channel, buf, container.getSiteZ(), numRows);
+        putInts(channel, buf, container.getObjectX(), numRows);
+        putInts(channel, buf, container.getObjectY(), numRows);
+        putLongs(channel, buf, container.getTime(), numRows);
+        for (int c = 0; c < numValueColumns; c++) {
+            putDoubles(channel, buf, container.getColumn(c), numRows);
+        }
+        // variable-length object ids
+        String[] objectIds = container.getObjectId();
+        for (int r = 0; r < numRows; r++) {
+            putString(channel, buf, objectIds[r]);
+        }
+        flush(channel, buf);
+    }
+
+    /**
+     * Returns the byte size of a fixed-width int column, padded to 8 bytes.
+     */
+    static long intColumnSize(int numRows) {
+        return ((numRows * 4L) + 7) & ~7L;
+    }
+
+    private static void putInts(FileChannel channel, ByteBuffer buf, int[] data, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            if (buf.remaining() < 4) flush(channel, buf);
+            buf.putInt(data[i]);
+        }
+        if ((n & 1) == 1) {
+            if (buf.remaining() < 4) flush(channel, buf);
+            buf.putInt(0); // keep 8 byte alignment
+        }
+    }
+
+    private static void putLongs(FileChannel channel, ByteBuffer buf, long[] data, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            if (buf.remaining() < 8) flush(channel, buf);
+            buf.putLong(data[i]);
+        }
+    }
+
+    private static void putDoubles(FileChannel channel, ByteBuffer buf, double[] data, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            if (buf.remaining() < 8) flush(channel, buf);
+            buf.putDouble(data[i]);
+        }
+    }
+
+    /**
+     * Writes the number of strings followed by the strings.
+     */
+    private static void putStrings(FileChannel channel, ByteBuffer buf, List<String> strings) throws IOException {
+        int n = strings != null ? strings.size() : 0;
+        ensure(channel, buf, 4);
+        buf.putInt(n);
+        for (int i = 0; i < n; i++) {
+            putString(channel, buf, strings.get(i));
+        }
+    }
+
+    /**
+     * Writes a length prefixed UTF-8 string (length -1 for null).
+     */
+    private static void putString(FileChannel channel, ByteBuffer buf, String s) throws IOException {
+        ensure(channel, buf, 4);
+        if (s == null) {
+            buf.putInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buf.putInt(bytes.length);
+        int off = 0;
+        while (off < bytes.length) {
+            if (!buf.hasRemaining()) flush(channel, buf);
+            int len = Math.min(buf.remaining(), bytes.length - off);
+            buf.put(bytes, off, len);
+            off += len;
+        }
+    }
+
+    private static void ensure(FileChannel channel, ByteBuffer buf, int bytes) throws IOException {
+        if (buf.remaining() < bytes) flush(channel, buf);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+}
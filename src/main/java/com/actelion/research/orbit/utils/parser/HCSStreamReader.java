@@ -0,0 +1,463 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.utils.parser;
+
+import com.actelion.research.orbit.beans.HCSContainer;
+import com.actelion.research.orbit.beans.HCSRow;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Streaming reader for HCS data in the Orbit HCS format (as written by HCSContainer.getDataAsString()).<br>
+ * The reader works like a cursor: {@link #nextRow()} parses the next line directly from the char buffer and the
+ * current row can be accessed with the getters without creating a HCSRow. The values array returned by
+ * {@link #getValues()} is reused for every row.
+ * Alternatively rows can be consumed via {@link #forEachRow(IHCSRowHandler)}, {@link #iterator()} (one HCSRow per line)
+ * or collected into a HCSContainer with {@link #readContainer()}.
+ * <p>
+ * Not thread-safe.
+ */
+public class HCSStreamReader implements Closeable, Iterable<HCSRow> {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<SimpleDateFormat> fallbackDateFormat = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return (SimpleDateFormat) HCSRow.HCSdateFormat.clone();
+        }
+    };
+
+    /**
+     * Callback for row-wise processing. The reader passed to the handler is positioned on the current row.
+     */
+    public interface IHCSRowHandler {
+        void handleRow(HCSStreamReader row) throws Exception;
+    }
+
+    private final Reader reader;
+    private char[] buf = new char[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    private int lineStart;
+    private int lineEnd;
+    private long lineNumber = 0;
+    private int[] fieldStart = new int[32];
+    private int[] fieldEnd = new int[32];
+    private int numFields = 0;
+    private List<String> header = null;
+    private boolean headerChecked = false;
+    private boolean rowPending = false;
+
+    // current row
+    private String containerName = "";
+    private String wellName = "";
+    private int siteX;
+    private int siteY;
+    private double siteZ;
+    private String objectId = "";
+    private int objectX;
+    private int objectY;
+    private long time;
+    private double[] values = new double[0];
+    private int numValues = 0;
+
+    public HCSStreamReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    public HCSStreamReader(InputStream inputStream, Charset charset) {
+        this(new InputStreamReader(inputStream, charset));
+    }
+
+    public HCSStreamReader(InputStream inputStream) {
+        this(inputStream, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the header columns or null if the data does not start with a header line.
+     */
+    public List<String> getHeader() throws IOException {
+        checkHeader();
+        return header;
+    }
+
+    /**
+     * Advances to the next data row. Empty lines are skipped.
+     *
+     * @return false if there are no more rows
+     */
+    public boolean nextRow() throws IOException, ParseException {
+        checkHeader();
+        if (rowPending) {
+            rowPending = false;
+        } else {
+            do {
+                if (!nextLine()) return false;
+            } while (lineStart == lineEnd);
+        }
+        parseRow();
+        return true;
+    }
+
+    /**
+     * Calls the handler for each remaining row.
+     *
+     * @return number of rows processed
+     */
+    public long forEachRow(IHCSRowHandler handler) throws Exception {
+        long cnt = 0;
+        while (nextRow()) {
+            handler.handleRow(this);
+            cnt++;
+        }
+        return cnt;
+    }
+
+    /**
+     * Returns an iterator creating one HCSRow per data line. IO and parse errors are wrapped in unchecked exceptions.
+     */
+    @Override
+    public Iterator<HCSRow> iterator() {
+        return new Iterator<HCSRow>() {
+            private Boolean hasNext = null;
+
+            @Override
+            public boolean hasNext() {
+                if (hasNext == null) {
+                    try {
+                        hasNext = nextRow();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (ParseException e) {
+                        throw new IllegalStateException(e.getMessage(), e);
+                    }
+                }
+                return hasNext;
+            }
+
+            @Override
+            public HCSRow next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                hasNext = null;
+                return toHCSRow();
+            }
+        };
+    }
+
+    /**
+     * Reads all remaining rows into a HCSContainer. The container name and reference date are taken from the first row.
+     */
+    public HCSContainer readContainer() throws IOException, ParseException {
+        List<HCSRow> rows = new ArrayList<HCSRow>();
+        while (nextRow()) {
+            rows.add(toHCSRow());
+        }
+        List<String> containerHeader = header != null ? header : new ArrayList<String>(HCSContainer.HCSHeaderBaseList);
+        String name = rows.isEmpty() ? "" : rows.get(0).getContainerName();
+        Date refDate = rows.isEmpty() ? new Date() : rows.get(0).getDateTime();
+        return new HCSContainer(name, refDate, rows, containerHeader);
+    }
+
+    /**
+     * Creates a HCSRow of the current row (the values are copied).
+     */
+    public HCSRow toHCSRow() {
+        double[] rowValues = numValues > 0 ? Arrays.copyOf(values, numValues) : null;
+        return new HCSRow(containerName, wellName, siteX, siteY, siteZ, objectId, objectX, objectY, new Date(time), rowValues);
+    }
+
+    private void checkHeader() throws IOException {
+        if (headerChecked) return;
+        headerChecked = true;
+        do {
+            if (!nextLine()) return;
+        } while (lineStart == lineEnd);
+        if (startsWith(lineStart, lineEnd, HCSContainer.HCSHeaderBaseList.get(0))) {
+            splitFields();
+            header = new ArrayList<String>(numFields);
+            for (int i = 0; i < numFields; i++) {
+                header.add(new String(buf, fieldStart[i], fieldEnd[i] - fieldStart[i]));
+            }
+        } else {
+            rowPending = true; // no header, first line is data
+        }
+    }
+
+    private void parseRow() throws ParseException {
+        splitFields();
+        if (numFields < HCSContainer.NumHeaderColumns) {
+            throw new ParseException("line " + lineNumber + " is not a valid HCSRow (length<" + HCSContainer.NumHeaderColumns + ")", 0);
+        }
+        containerName = reuseString(containerName, 0);
+        wellName = reuseString(wellName, 1);
+        siteX = parseInt(2);
+        siteY = parseInt(3);
+        siteZ = CharNumberParser.parseDouble(buf, fieldStart[4], fieldEnd[4], Double.NaN);
+        if (Double.isNaN(siteZ) && !contains(fieldStart[4], fieldEnd[4], "NaN")) throw parseError(4);
+        objectId = reuseString(objectId, 5);
+        objectX = parseInt(6);
+        objectY = parseInt(7);
+        time = parseDate(fieldStart[8], fieldEnd[8]);
+        numValues = numFields - HCSContainer.NumHeaderColumns;
+        if (values.length < numValues) values = new double[numValues];
+        for (int i = 0; i < numValues; i++) {
+            int f = i + HCSContainer.NumHeaderColumns;
+            values[i] = CharNumberParser.parseDouble(buf, fieldStart[f], fieldEnd[f], Double.NaN);
+        }
+    }
+
+    private int parseInt(int field) throws ParseException {
+        long l = CharNumberParser.parseLong(buf, fieldStart[field], fieldEnd[field], Long.MIN_VALUE);
+        if (l == Long.MIN_VALUE || l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) throw parseError(field);
+        return (int) l;
+    }
+
+    private ParseException parseError(int field) {
+        return new ParseException("line " + lineNumber + ": invalid value in column " + (field + 1) + ": " + new String(buf, fieldStart[field], fieldEnd[field] - fieldStart[field]), fieldStart[field] - lineStart);
+    }
+
+    /**
+     * Returns old if it has the same chars as the field (container and well names usually repeat), otherwise a new string.
+     */
+    private String reuseString(String old, int field) {
+        int len = fieldEnd[field] - fieldStart[field];
+        if (old != null && old.length() == len) {
+            int s = fieldStart[field];
+            boolean same = true;
+            for (int i = 0; i < len; i++) {
+                if (old.charAt(i) != buf[s + i]) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) return old;
+        }
+        return new String(buf, fieldStart[field], len);
+    }
+
+    /**
+     * Parses dates in the HCSRow.HCSdateFormat format 'dd.MM.yyyy HH:mm:ss,SSS Z' without SimpleDateFormat.
+     * Other representations fall back to SimpleDateFormat.
+     */
+    private long parseDate(int s, int e) throws ParseException {
+        if (e - s == 29 && buf[s + 2] == '.' && buf[s + 5] == '.' && buf[s + 10] == ' ' && buf[s + 13] == ':' && buf[s + 16] == ':'
+                && buf[s + 19] == ',' && buf[s + 23] == ' ' && (buf[s + 24] == '+' || buf[s + 24] == '-')) {
+            int day = digits(s, 2);
+            int month = digits(s + 3, 2);
+            int year = digits(s + 6, 4);
+            int hour = digits(s + 11, 2);
+            int minute = digits(s + 14, 2);
+            int second = digits(s + 17, 2);
+            int millis = digits(s + 20, 3);
+            int zoneHours = digits(s + 25, 2);
+            int zoneMinutes = digits(s + 27, 2);
+            if ((day | month | year | hour | minute | second | millis | zoneHours | zoneMinutes) >= 0
+                    && month >= 1 && month <= 12 && day >= 1 && day <= 31 && hour < 24 && minute < 60 && second < 60) {
+                long offset = (zoneHours * 60L + zoneMinutes) * 60000L;
+                if (buf[s + 24] == '-') offset = -offset;
+                long epochDay = daysFromCivil(year, month, day);
+                return ((epochDay * 24 + hour) * 60 + minute) * 60000L + second * 1000L + millis - offset;
+            }
+        }
+        return fallbackDateFormat.get().parse(new String(buf, s, e - s)).getTime();
+    }
+
+    /**
+     * Returns the decimal number of buf[s..s+len) or -1 if it contains non-digits.
+     */
+    private int digits(int s, int len) {
+        int v = 0;
+        for (int i = s; i < s + len; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) return -1;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    /**
+     * Days since 1970-01-01 in the proleptic Gregorian calendar (H. Hinnant's days_from_civil).
+     */
+    private static long daysFromCivil(int y, int m, int d) {
+        y -= m <= 2 ? 1 : 0;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yoe = y - era * 400;
+        long doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    private boolean startsWith(int s, int e, String prefix) {
+        if (e - s < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buf[s + i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private boolean contains(int s, int e, String token) {
+        int n = token.length();
+        for (int i = s; i <= e - n; i++) {
+            int j = 0;
+            while (j < n && buf[i + j] == token.charAt(j)) j++;
+            if (j == n) return true;
+        }
+        return false;
+    }
+
+    private void splitFields() {
+        numFields = 0;
+        int s = lineStart;
+        for (int i = lineStart; i <= lineEnd; i++) {
+            if (i == lineEnd || buf[i] == HCSRow.HCSSeparator) {
+                if (numFields == fieldStart.length) {
+                    fieldStart = Arrays.copyOf(fieldStart, numFields * 2);
+                    fieldEnd = Arrays.copyOf(fieldEnd, numFields * 2);
+                }
+                fieldStart[numFields] = s;
+                fieldEnd[numFields] = i;
+                numFields++;
+                s = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Positions lineStart/lineEnd on the next line (without line terminator).
+     *
+     * @return false at end of stream
+     */
+    private boolean nextLine() throws IOException {
+        int scan = pos;
+        while (true) {
+            for (int i = scan; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    lineStart = pos;
+                    lineEnd = (i > pos && buf[i - 1] == '\r') ? i - 1 : i;
+                    pos = i + 1;
+                    lineNumber++;
+                    return true;
+                }
+            }
+            if (eof) {
+                if (pos >= limit) return false;
+                lineStart = pos;
+                lineEnd = (buf[limit - 1] == '\r') ? limit - 1 : limit;
+                pos = limit;
+                lineNumber++;
+                return true;
+            }
+            // compact and fill
+            int remaining = limit - pos;
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, remaining);
+            } else if (remaining == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2); // line longer than buffer
+            }
+            pos = 0;
+            limit = remaining;
+            scan = remaining;
+            int n = reader.read(buf, limit, buf.length - limit);
+            if (n < 0) eof = true;
+            else limit += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    public String getContainerName() {
+        return containerName;
+    }
+
+    public String getWellName() {
+        return wellName;
+    }
+
+    public int getSiteX() {
+        return siteX;
+    }
+
+    public int getSiteY() {
+        return siteY;
+    }
+
+    public double getSiteZ() {
+        return siteZ;
+    }
+
+    public String getObjectId() {
+        return objectId;
+    }
+
+    public int getObjectX() {
+        return objectX;
+    }
+
+    public int getObjectY() {
+        return objectY;
+    }
+
+    /**
+     * Returns the time of the current row in milliseconds since epoch.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the values of the current row. The array is reused for every row and may be longer than getNumValues().
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    public int getNumValues() {
+        return numValues;
+    }
+
+    public double getValue(int i) {
+        if (i >= numValues) throw new IndexOutOfBoundsException("value index " + i + " >= " + numValues);
+        return values[i];
+    }
+
+}
@@ -20,56 +20,145 @@
 package com.actelion.research.orbit.utils.parser;
 
 import com.actelion.research.orbit.beans.DoseResponseContainer;
-import com.actelion.research.orbit.beans.DoseResponseRow;
+import com.actelion.research.orbit.utils.ExpiringCache;
+import com.actelion.research.orbit.utils.ParallelTasks;
 import com.actelion.research.orbit.utils.RawUtilsCommon;
+import com.actelion.research.orbit.utils.parser.DoseResponseStreamReader.IDoseResponseContainerHandler;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
 
+/**
+ * Parser for the Orbit dose response format (.dr384 / .dr96, UTF-8).<br>
+ * Files are parsed with a DoseResponseStreamReader. Files larger than PARALLEL_THRESHOLD are split at container boundaries
+ * (see DoseResponseIndex) and the chunks are parsed in parallel on the shared ParallelTasks pool. The container index of a file is cached, so
+ * getNewFileName() and parseContainer() do not parse the whole file.
+ */
 public class OrbitDoseResponseParser implements IDoseResponseParser {
 
     private static final String TestFile = "D:\\temp\\drplate.dr384";
+    public static final long PARALLEL_THRESHOLD = 8 * 1024 * 1024;
+    private static final long CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final ExpiringCache<String, DoseResponseIndex> indexCache = new ExpiringCache<String, DoseResponseIndex>(32, 10 * 60 * 1000L);
 
+    /**
+     * Parses all containers of the file. Files larger than PARALLEL_THRESHOLD are parsed in parallel.
+     */
     public List<DoseResponseContainer> parseFile(String fileName) throws Exception {
-        List<DoseResponseContainer> containerList = new ArrayList<DoseResponseContainer>();
-        BufferedReader reader = null;
-        try {
-            Date date = new Date(new File(fileName).lastModified());
-            reader = new BufferedReader(new FileReader(fileName));
-            String plateFormat = RawUtilsCommon.PlateFormat_384;              // .dr384
-            String ending = RawUtilsCommon.getExtension(fileName);
-            if (ending.contains(RawUtilsCommon.PlateFormat_96)) plateFormat = RawUtilsCommon.PlateFormat_96; // .dr96
-            String line;
-            // heaser
-            while (!(line = reader.readLine()).contains("ContainerName")) {
-                // skip empty lines lines
-            }
-            // data
-            DoseResponseContainer container = null;
-            while ((line = reader.readLine()) != null) {
-                DoseResponseRow row = DoseResponseRow.parseDoseResponseRow(line);
-                if (container == null || (!container.getContainerName().equals(row.getContainerName()))) {
-                    container = new DoseResponseContainer(row.getContainerName(), date, new ArrayList<DoseResponseRow>(), plateFormat);
-                    containerList.add(container);
-                }
-                container.getData().add(row);
-            }
-//				if (container!=null) {
-//					containerList.add(container);
-//				}
-        } finally {
-            try {
-                if (reader != null) reader.close();
-            } catch (Exception e) {
+        int parallelism = new File(fileName).length() >= PARALLEL_THRESHOLD ? Runtime.getRuntime().availableProcessors() : 1;
+        return parseFile(fileName, parallelism);
+    }
+
+    /**
+     * Parses all containers of the file using up to parallelism threads (1 = streaming in the calling thread).
+     */
+    public List<DoseResponseContainer> parseFile(String fileName, int parallelism) throws IOException, ParseException {
+        if (parallelism <= 1) {
+            try (DoseResponseStreamReader reader = createReader(fileName)) {
+                return reader.readAll();
             }
         }
+        final File file = new File(fileName);
+        List<List<DoseResponseIndex.Entry>> chunks = getIndex(fileName).split(CHUNK_SIZE);
+        List<Callable<List<DoseResponseContainer>>> tasks = new ArrayList<Callable<List<DoseResponseContainer>>>(chunks.size());
+        for (final List<DoseResponseIndex.Entry> chunk : chunks) {
+            tasks.add(() -> parseChunk(file, chunk));
+        }
+        List<List<DoseResponseContainer>> parsedChunks;
+        try {
+            parsedChunks = ParallelTasks.invokeAll(tasks, parallelism);
+        } catch (IOException | ParseException | RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while parsing " + fileName, e);
+        } catch (Exception e) {
+            throw new IOException("error parsing " + fileName, e);
+        }
+        List<DoseResponseContainer> containerList = new ArrayList<DoseResponseContainer>();
+        for (List<DoseResponseContainer> containers : parsedChunks) {
+            containerList.addAll(containers);
+        }
         return containerList;
     }
 
+    /**
+     * Streams the containers of the file to the handler, each container is passed as soon as it is complete.
+     *
+     * @return number of containers
+     */
+    public int parseFile(String fileName, IDoseResponseContainerHandler handler) throws Exception {
+        try (DoseResponseStreamReader reader = createReader(fileName)) {
+            return reader.forEachContainer(handler);
+        }
+    }
+
+    /**
+     * Parses only the container with the given number (0-based), using the cached container index.
+     */
+    public DoseResponseContainer parseContainer(String fileName, int containerNum) throws IOException, ParseException {
+        DoseResponseIndex.Entry entry = getIndex(fileName).getEntry(containerNum);
+        List<DoseResponseContainer> containers = parseChunk(new File(fileName), Collections.singletonList(entry));
+        return containers.get(0);
+    }
+
+    /**
+     * Returns the container index of the file. Indexes are cached and rebuilt if the file has been modified.
+     */
+    public DoseResponseIndex getIndex(String fileName) throws IOException, ParseException {
+        File file = new File(fileName);
+        String key = file.getAbsolutePath();
+        DoseResponseIndex index = indexCache.get(key);
+        if (index == null || !index.isValidFor(file)) {
+            index = DoseResponseIndex.build(file);
+            indexCache.put(key, index);
+        }
+        return index;
+    }
+
+    private DoseResponseStreamReader createReader(String fileName) throws IOException {
+        File file = new File(fileName);
+        InputStream in = new FileInputStream(file);
+        return new DoseResponseStreamReader(in, new Date(file.lastModified()), getPlateFormat(fileName));
+    }
+
+    /**
+     * Reads the bytes of the consecutive containers and parses them.
+     */
+    private List<DoseResponseContainer> parseChunk(File file, List<DoseResponseIndex.Entry> chunk) throws IOException, ParseException {
+        DoseResponseIndex.Entry first = chunk.get(0);
+        DoseResponseIndex.Entry last = chunk.get(chunk.size() - 1);
+        long length = last.getOffset() + last.getLength() - first.getOffset();
+        if (length > Integer.MAX_VALUE) throw new IOException("container too large: " + first.getContainerName());
+        byte[] data = new byte[(int) length];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(first.getOffset());
+            raf.readFully(data);
+        }
+        try (DoseResponseStreamReader reader = new DoseResponseStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8,
+                new Date(file.lastModified()), getPlateFormat(file.getName()), false)) {
+            return reader.readAll();
+        }
+    }
+
+    private static String getPlateFormat(String fileName) {
+        String plateFormat = RawUtilsCommon.PlateFormat_384;              // .dr384
+        String ending = RawUtilsCommon.getExtension(fileName);
+        if (ending.contains(RawUtilsCommon.PlateFormat_96)) plateFormat = RawUtilsCommon.PlateFormat_96; // .dr96
+        return plateFormat;
+    }
+
 
     public boolean acceptFile(File f) {
         if (!f.isFile()) return false;
@@ -80,9 +169,8 @@ public class OrbitDoseResponseParser implements IDoseResponseParser {
         String fn = fileName.replaceAll("(?i).txt", "-" + frameNum).replaceAll("(?i).dr384", "-" + frameNum).replaceAll("(?i).dr96", "-" + frameNum);
         String plateFormat = RawUtilsCommon.PlateFormat_384;
         try {
-            DoseResponseContainer container = parseFile(fileName).get(frameNum);
-            fn = container.getContainerName();
-            plateFormat = container.getPlateFormat();
+            fn = getIndex(fileName).getEntry(frameNum).getContainerName();
+            plateFormat = getPlateFormat(fileName);
         } catch (Exception e) {
             e.printStackTrace();
         }
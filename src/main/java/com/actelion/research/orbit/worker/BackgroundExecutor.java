@@ -21,6 +21,7 @@ package com.actelion.research.orbit.worker;
 
 import java.beans.PropertyChangeSupport;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -97,16 +98,18 @@ public class BackgroundExecutor implements IWorkerExecutor<Integer> {
     }
 
     /**
-     * executes worker in a new thread
+     * executes worker in background using the shared WorkerExecutorService
      */
     public void execute() {
-        futureTask = new FutureTask(abstractWorker);
-        new Thread() {
-            @Override
-            public void run() {
-                futureTask.run();
-            }
-        }.start();
+        execute(WorkerExecutorService.getExecutor());
+    }
+
+    /**
+     * executes worker in background using the given executor
+     */
+    public void execute(Executor executor) {
+        futureTask = new FutureTask<Integer>(abstractWorker);
+        executor.execute(futureTask);
     }
 
     /**
@@ -0,0 +1,205 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.worker;
+
+import com.actelion.research.orbit.utils.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared executor used by BackgroundExecutor.execute().<br>
+ * By default (THREAD_PER_TASK) every worker gets its own thread like the former BackgroundExecutor behaviour,
+ * idle threads are reused for KEEP_ALIVE_SECONDS. The executor can be configured via {@link #configure(Mode, int, int, RejectionPolicy)}
+ * or the system properties orbit.worker.mode (POOLED, THREAD_PER_TASK, VIRTUAL), orbit.worker.poolSize and
+ * orbit.worker.queueCapacity (0 = unbounded); the POOLED mode uses a bounded pool (2 x number of processors, at least 4 threads).
+ * <p>
+ * Worker threads are non-daemon threads, so the JVM does not exit while workers are running (idle threads time out after
+ * KEEP_ALIVE_SECONDS). Applications which do not need this can opt in to daemon threads with the system property orbit.worker.daemon=true.
+ * <p>
+ * Workers which wait for other workers should not run on a bounded pool (they might block all its threads);
+ * keep the THREAD_PER_TASK mode or use BackgroundExecutor.execute(Executor) with a dedicated executor for them.
+ */
+public final class WorkerExecutorService {
+
+    private static final Logger logger = Logger.getLogger(WorkerExecutorService.class);
+    private static final long KEEP_ALIVE_SECONDS = 30L;
+    private static final boolean DAEMON_THREADS = Boolean.getBoolean("orbit.worker.daemon");
+
+    public enum Mode {
+        POOLED,          // bounded thread pool
+        THREAD_PER_TASK, // unbounded, like the former BackgroundExecutor behaviour (threads are reused for a short time)
+        VIRTUAL          // one virtual thread per task (Java 21+), falls back to POOLED on older runtimes
+    }
+
+    public enum RejectionPolicy {
+        ABORT,       // throw a RejectedExecutionException
+        CALLER_RUNS, // run the worker in the submitting thread
+        BLOCK        // block the submitting thread until the queue has space
+    }
+
+    private static ExecutorService executor = null;
+    private static Mode mode = parseMode(System.getProperty("orbit.worker.mode"));
+    private static int poolSize = Integer.getInteger("orbit.worker.poolSize", Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    private static int queueCapacity = Integer.getInteger("orbit.worker.queueCapacity", 0);
+    private static RejectionPolicy rejectionPolicy = RejectionPolicy.BLOCK;
+
+    private WorkerExecutorService() {
+    }
+
+    /**
+     * Returns the shared executor (created on first use).
+     */
+    public static synchronized ExecutorService getExecutor() {
+        if (executor == null || executor.isShutdown()) {
+            executor = createExecutor(mode, poolSize, queueCapacity, rejectionPolicy);
+        }
+        return executor;
+    }
+
+    /**
+     * Replaces the shared executor. The previous executor is shut down gracefully (already submitted workers complete).
+     *
+     * @param poolSize      maximum number of threads (POOLED mode only)
+     * @param queueCapacity maximum number of waiting workers, 0 for an unbounded queue (POOLED mode only)
+     */
+    public static synchronized void configure(Mode mode, int poolSize, int queueCapacity, RejectionPolicy rejectionPolicy) {
+        if (poolSize < 1) throw new IllegalArgumentException("poolSize must be >= 1");
+        if (queueCapacity < 0) throw new IllegalArgumentException("queueCapacity must be >= 0");
+        WorkerExecutorService.mode = mode;
+        WorkerExecutorService.poolSize = poolSize;
+        WorkerExecutorService.queueCapacity = queueCapacity;
+        WorkerExecutorService.rejectionPolicy = rejectionPolicy;
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Shuts down the shared executor gracefully. A new executor will be created on the next getExecutor() call.
+     */
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    public static synchronized Mode getMode() {
+        return mode;
+    }
+
+    public static synchronized int getPoolSize() {
+        return poolSize;
+    }
+
+    public static synchronized int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public static synchronized RejectionPolicy getRejectionPolicy() {
+        return rejectionPolicy;
+    }
+
+    private static Mode parseMode(String s) {
+        if (s == null) return Mode.THREAD_PER_TASK;
+        try {
+            return Mode.valueOf(s.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.error("unknown orbit.worker.mode " + s + ", using " + Mode.THREAD_PER_TASK);
+            return Mode.THREAD_PER_TASK;
+        }
+    }
+
+    private static ExecutorService createExecutor(Mode mode, int poolSize, int queueCapacity, RejectionPolicy rejectionPolicy) {
+        switch (mode) {
+            case THREAD_PER_TASK:
+                return new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new NamedThreadFactory());
+            case VIRTUAL:
+                ExecutorService virtual = createVirtualThreadExecutor();
+                if (virtual != null) return virtual;
+                logger.info("virtual threads are not available on this Java runtime, using a thread pool instead");
+                // fall through
+            default:
+                BlockingQueue<Runnable> queue = queueCapacity > 0 ? new ArrayBlockingQueue<Runnable>(queueCapacity) : new LinkedBlockingQueue<Runnable>();
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue, new NamedThreadFactory(), createRejectionHandler(rejectionPolicy));
+                pool.allowCoreThreadTimeOut(true);
+                return pool;
+        }
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() via reflection, because the library is compiled for Java 8.
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static RejectedExecutionHandler createRejectionHandler(RejectionPolicy rejectionPolicy) {
+        switch (rejectionPolicy) {
+            case ABORT:
+                return new ThreadPoolExecutor.AbortPolicy();
+            case CALLER_RUNS:
+                return new ThreadPoolExecutor.CallerRunsPolicy();
+            default:
+                return new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+                        if (pool.isShutdown()) throw new RejectedExecutionException("worker executor has been shut down");
+                        try {
+                            pool.getQueue().put(r);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException("interrupted while waiting for a free worker slot", e);
+                        }
+                    }
+                };
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private static final AtomicInteger poolNumber = new AtomicInteger(1);
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String prefix = "OrbitWorker-" + poolNumber.getAndIncrement() + "-";
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + threadNumber.getAndIncrement());
+            thread.setDaemon(DAEMON_THREADS);
+            return thread;
+        }
+    }
+
+}